@@ -0,0 +1,60 @@
+package com.manning.apisecurityinaction;
+
+import com.manning.apisecurityinaction.controller.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class AuditBenchmark {
+
+    @Param({"SYNCHRONOUS", "DROP"})
+    public String backpressure;
+
+    NatterFixture fixture;
+    AuditWriter auditWriter;
+    AuditController auditController;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new NatterFixture(100, 10, 10);
+        var auditIds = new IdAllocator(fixture.database, "audit_id_seq",
+                NatterFixture.ID_BLOCK_SIZE,
+                Executors.newSingleThreadExecutor());
+        auditWriter = new AuditWriter(fixture.database, auditIds, 10_000, 500,
+                200, AuditWriter.Backpressure.valueOf(backpressure));
+        auditWriter.start();
+        auditController = new AuditController(fixture.database, auditWriter);
+    }
+
+    @TearDown
+    public void tearDown() {
+        auditWriter.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        final FakeRequest request = new FakeRequest("GET", "/spaces/1/messages");
+        final FakeResponse response = new FakeResponse();
+
+        FakeRequest nextRequest() {
+            request.reset();
+            request.attribute("subject", "user1");
+            response.reset();
+            return request;
+        }
+    }
+
+    @Benchmark
+    public FakeRequest auditRequest(Exchange exchange) {
+        var request = exchange.nextRequest();
+        auditController.auditRequestStart(request, exchange.response);
+        auditController.auditRequestEnd(request, exchange.response);
+        return request;
+    }
+}
@@ -0,0 +1,68 @@
+package com.manning.apisecurityinaction;
+
+import com.manning.apisecurityinaction.controller.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class AuthenticateBenchmark {
+
+    @Param({"0", "10000"})
+    public int credentialCacheSize;
+
+    @Param({"1000"})
+    public int users;
+
+    NatterFixture fixture;
+    UserController userController;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new NatterFixture(users, 100, 20);
+        userController = new UserController(fixture.database,
+                new CredentialCache(credentialCacheSize, Duration.ofMinutes(5)),
+                PermissionIndex.load(fixture.database),
+                new PasswordHasher(Runtime.getRuntime().availableProcessors(),
+                        1024, 1L << 30, 32768, 8, 1));
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        final FakeRequest[] requests = new FakeRequest[64];
+        final FakeResponse response = new FakeResponse();
+        int next;
+
+        @Setup
+        public void setup(AuthenticateBenchmark benchmark) {
+            var random = new Random();
+            for (int i = 0; i < requests.length; ++i) {
+                var username = benchmark.fixture.randomUser(random);
+                requests[i] = new FakeRequest("GET", "/spaces")
+                        .header("Authorization",
+                                benchmark.fixture.basicAuth(username));
+            }
+        }
+
+        FakeRequest nextRequest() {
+            var request = requests[next++ & (requests.length - 1)];
+            request.reset();
+            response.reset();
+            return request;
+        }
+    }
+
+    @Benchmark
+    public Object authenticate(Exchange exchange) {
+        var request = exchange.nextRequest();
+        userController.authenticate(request, exchange.response);
+        return request.attribute("subject");
+    }
+}
@@ -0,0 +1,26 @@
+package com.manning.apisecurityinaction;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+// java -cp benchmarks/target/benchmarks.jar \
+//     -Dthreads=1,4,16 com.manning.apisecurityinaction.BenchmarkRunner [regex]
+//
+// Runs the selected benchmarks once per thread count and writes one JSON
+// result file per run to target/, so runs can be compared across releases.
+public class BenchmarkRunner {
+    public static void main(String... args) throws RunnerException {
+        var include = args.length > 0 ? args[0] :
+                "com.manning.apisecurityinaction.*Benchmark";
+        for (var threads : System.getProperty("threads", "1,4,16").split(",")) {
+            var options = new OptionsBuilder()
+                    .include(include)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-threads-" + threads.trim() + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
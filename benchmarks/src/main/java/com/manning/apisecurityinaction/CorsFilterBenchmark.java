@@ -0,0 +1,52 @@
+package com.manning.apisecurityinaction;
+
+import org.openjdk.jmh.annotations.*;
+import spark.HaltException;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CorsFilterBenchmark {
+
+    @Param({"GET", "OPTIONS"})
+    public String method;
+
+    CorsFilter corsFilter;
+
+    @Setup
+    public void setup() {
+        corsFilter = new CorsFilter(Set.of("https://localhost:9999"));
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        FakeRequest request;
+        final FakeResponse response = new FakeResponse();
+
+        @Setup
+        public void setup(CorsFilterBenchmark benchmark) {
+            request = new FakeRequest(benchmark.method, "/spaces")
+                    .header("Origin", "https://localhost:9999");
+            if ("OPTIONS".equals(benchmark.method)) {
+                request.header("Access-Control-Request-Method", "POST");
+            }
+        }
+    }
+
+    @Benchmark
+    public int handle(Exchange exchange) {
+        exchange.response.reset();
+        try {
+            corsFilter.handle(exchange.request, exchange.response);
+            return exchange.response.status();
+        } catch (HaltException e) {
+            return e.statusCode();
+        }
+    }
+}
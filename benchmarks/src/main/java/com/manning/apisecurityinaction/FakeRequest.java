@@ -0,0 +1,108 @@
+package com.manning.apisecurityinaction;
+
+import spark.Request;
+
+import java.util.*;
+
+/**
+ * Minimal in-memory {@link Request} so filters can be benchmarked
+ * without a servlet container.
+ */
+public class FakeRequest extends Request {
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers = new HashMap<>();
+    private final Map<String, String> params = new HashMap<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private String body = "";
+
+    public FakeRequest(String method, String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    public FakeRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public FakeRequest param(String name, String value) {
+        params.put(name, value);
+        return this;
+    }
+
+    public FakeRequest body(String body) {
+        this.body = body;
+        return this;
+    }
+
+    public void reset() {
+        attributes.clear();
+    }
+
+    @Override
+    public String requestMethod() {
+        return method;
+    }
+
+    @Override
+    public String pathInfo() {
+        return path;
+    }
+
+    @Override
+    public String uri() {
+        return path;
+    }
+
+    @Override
+    public String ip() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public String contentType() {
+        return headers.get("Content-Type");
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public String headers(String header) {
+        return headers.get(header);
+    }
+
+    @Override
+    public Set<String> headers() {
+        return headers.keySet();
+    }
+
+    @Override
+    public String params(String param) {
+        return params.get(param);
+    }
+
+    @Override
+    public Map<String, String> params() {
+        return params;
+    }
+
+    @Override
+    public void attribute(String attribute, Object value) {
+        attributes.put(attribute, value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T attribute(String attribute) {
+        return (T) attributes.get(attribute);
+    }
+
+    @Override
+    public Set<String> attributes() {
+        return attributes.keySet();
+    }
+}
@@ -0,0 +1,60 @@
+package com.manning.apisecurityinaction;
+
+import spark.Response;
+
+import java.util.*;
+
+/**
+ * Minimal in-memory {@link Response} that records status and headers.
+ */
+public class FakeResponse extends Response {
+    private final Map<String, String> headers = new HashMap<>();
+    private int status = 200;
+    private String type;
+    private String body;
+
+    public void reset() {
+        headers.clear();
+        status = 200;
+        body = null;
+    }
+
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public void header(String header, String value) {
+        headers.put(header, value);
+    }
+
+    @Override
+    public void status(int statusCode) {
+        this.status = statusCode;
+    }
+
+    @Override
+    public int status() {
+        return status;
+    }
+
+    @Override
+    public void type(String contentType) {
+        this.type = contentType;
+    }
+
+    @Override
+    public String type() {
+        return type;
+    }
+
+    @Override
+    public void body(String body) {
+        this.body = body;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+}
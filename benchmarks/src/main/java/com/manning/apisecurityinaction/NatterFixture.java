@@ -0,0 +1,104 @@
+package com.manning.apisecurityinaction;
+
+import com.lambdaworks.crypto.SCryptUtil;
+import com.manning.apisecurityinaction.controller.IdAllocator;
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory H2 database with the Natter schema, seeded with users,
+ * spaces and permissions. Every user has the same password so seeding
+ * needs only one scrypt hash.
+ */
+public class NatterFixture {
+    public static final String PASSWORD = "benchmark-password";
+    public static final int ID_BLOCK_SIZE = 100;
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    public final Database database;
+    public final int users;
+    public final int spaces;
+    public final int membersPerSpace;
+
+    public NatterFixture(int users, int spaces, int membersPerSpace)
+            throws IOException {
+        this.users = users;
+        this.spaces = spaces;
+        this.membersPerSpace = membersPerSpace;
+
+        // Only an admin may set DB_CLOSE_DELAY, so the API user gets the bare URL
+        var url = "jdbc:h2:mem:bench" + instances.incrementAndGet();
+        var admin = Database.forDataSource(JdbcConnectionPool.create(
+                url + ";DB_CLOSE_DELAY=-1", "natter", "password"));
+        admin.update(schema());
+        seed(admin);
+        IdAllocator.prepareSequence(admin, "space_id_seq", "spaces", "space_id",
+                ID_BLOCK_SIZE);
+        IdAllocator.prepareSequence(admin, "msg_id_seq", "messages", "msg_id",
+                ID_BLOCK_SIZE);
+        IdAllocator.prepareSequence(admin, "audit_id_seq", "audit_log", "audit_id",
+                ID_BLOCK_SIZE);
+
+        this.database = Database.forDataSource(JdbcConnectionPool.create(
+                url, "natter_api_user", "password"));
+    }
+
+    public static String username(int i) {
+        return "user" + i;
+    }
+
+    public String randomUser(Random random) {
+        return username(random.nextInt(users));
+    }
+
+    /**
+     * Picks a (space, member) pair that was granted "rwd".
+     */
+    public long[] randomGrant(Random random) {
+        var space = random.nextInt(spaces);
+        var member = (space + random.nextInt(membersPerSpace)) % users;
+        return new long[] { space + 1, member };
+    }
+
+    public String basicAuth(String username) {
+        var credentials = username + ":" + PASSWORD;
+        return "Basic " + Base64.getEncoder().encodeToString(
+                credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void seed(Database admin) {
+        var hash = SCryptUtil.scrypt(PASSWORD, 32768, 8, 1);
+        var userRows = new ArrayList<List<?>>();
+        for (int i = 0; i < users; ++i) {
+            userRows.add(List.of(username(i), hash));
+        }
+        admin.updateBatch("INSERT INTO users(user_id, pw_hash) VALUES(?, ?)",
+                userRows);
+
+        var spaceRows = new ArrayList<List<?>>();
+        var permRows = new ArrayList<List<?>>();
+        for (int s = 0; s < spaces; ++s) {
+            var spaceId = s + 1;
+            spaceRows.add(List.of(spaceId, "space" + spaceId, username(s % users)));
+            for (int m = 0; m < membersPerSpace; ++m) {
+                permRows.add(List.of(spaceId, username((s + m) % users), "rwd"));
+            }
+        }
+        admin.updateBatch("INSERT INTO spaces(space_id, name, owner) " +
+                "VALUES(?, ?, ?)", spaceRows);
+        admin.updateBatch("INSERT INTO permissions(space_id, user_id, perms) " +
+                "VALUES(?, ?, ?)", permRows);
+    }
+
+    private static String schema() throws IOException {
+        try (var in = NatterFixture.class.getResourceAsStream("/schema.sql")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.manning.apisecurityinaction;
+
+import com.manning.apisecurityinaction.controller.*;
+import org.openjdk.jmh.annotations.*;
+import spark.Filter;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PermissionBenchmark {
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"1000"})
+    public int spaces;
+
+    @Param({"20"})
+    public int membersPerSpace;
+
+    NatterFixture fixture;
+    Filter requirePermission;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new NatterFixture(users, spaces, membersPerSpace);
+        var userController = new UserController(fixture.database,
+                new CredentialCache(0, Duration.ofMinutes(5)),
+                PermissionIndex.load(fixture.database),
+                new PasswordHasher(Runtime.getRuntime().availableProcessors(),
+                        1024, 1L << 30, 32768, 8, 1));
+        requirePermission = userController.requirePermission("GET", "r");
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        final FakeRequest[] requests = new FakeRequest[256];
+        final String[] subjects = new String[requests.length];
+        final FakeResponse response = new FakeResponse();
+        int next;
+
+        @Setup
+        public void setup(PermissionBenchmark benchmark) {
+            var random = new Random();
+            for (int i = 0; i < requests.length; ++i) {
+                var grant = benchmark.fixture.randomGrant(random);
+                requests[i] = new FakeRequest("GET",
+                        "/spaces/" + grant[0] + "/messages/1")
+                        .param(":spaceId", Long.toString(grant[0]));
+                subjects[i] = NatterFixture.username((int) grant[1]);
+            }
+        }
+
+        FakeRequest nextRequest() {
+            var index = next++ & (requests.length - 1);
+            var request = requests[index];
+            request.reset();
+            request.attribute("subject", subjects[index]);
+            response.reset();
+            return request;
+        }
+    }
+
+    @Benchmark
+    public FakeRequest requirePermission(Exchange exchange) throws Exception {
+        var request = exchange.nextRequest();
+        requirePermission.handle(request, exchange.response);
+        return request;
+    }
+}
@@ -0,0 +1,126 @@
+package com.manning.apisecurityinaction;
+
+import com.manning.apisecurityinaction.controller.TokenController;
+import com.manning.apisecurityinaction.token.*;
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TokenValidationBenchmark {
+
+    @Param({"database", "cached", "sharded", "stateless"})
+    public String store;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"10000"})
+    public int tokens;
+
+    NatterFixture fixture;
+    TokenController tokenController;
+    String[] tokenIds;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = new NatterFixture(users, 100, 20);
+
+        var key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        var macKey = new SecretKeySpec(key, "HmacSHA256");
+
+        TokenStore tokenStore;
+        switch (store) {
+            case "database":
+                tokenStore = new HmacTokenStore(
+                        new DatabaseTokenStore(fixture.database), macKey);
+                break;
+            case "cached":
+                tokenStore = new HmacTokenStore(new CachingTokenStore(
+                        new DatabaseTokenStore(fixture.database),
+                        tokens, Duration.ofMinutes(10)), macKey);
+                break;
+            case "sharded":
+                var shards = new LinkedHashMap<String, DatabaseTokenStore>();
+                for (int i = 0; i < 4; ++i) {
+                    shards.put("shard-" + i,
+                            new DatabaseTokenStore(tokenShard(i)));
+                }
+                tokenStore = new HmacTokenStore(
+                        new ShardedTokenStore(shards), macKey);
+                break;
+            case "stateless":
+                tokenStore = new StatelessTokenStore(macKey);
+                break;
+            default:
+                throw new IllegalArgumentException(store);
+        }
+        tokenController = new TokenController(tokenStore);
+
+        var random = new Random();
+        var expiry = Instant.now().plus(Duration.ofHours(1));
+        tokenIds = new String[tokens];
+        for (int i = 0; i < tokens; ++i) {
+            var token = new TokenStore.Token(expiry, fixture.randomUser(random));
+            tokenIds[i] = tokenStore.create(null, token);
+        }
+    }
+
+    private static Database tokenShard(int shard) throws IOException {
+        var url = "jdbc:h2:mem:bench-tokens-" + shard + "-" + System.nanoTime();
+        try (var in = TokenValidationBenchmark.class
+                .getResourceAsStream("/token-shard.sql")) {
+            Database.forDataSource(JdbcConnectionPool.create(
+                    url + ";DB_CLOSE_DELAY=-1", "natter", "password"))
+                    .update(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        return Database.forDataSource(
+                JdbcConnectionPool.create(url, "natter_api_user", "password"));
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        final FakeRequest[] requests = new FakeRequest[256];
+        final FakeResponse response = new FakeResponse();
+        int next;
+
+        @Setup
+        public void setup(TokenValidationBenchmark benchmark) {
+            var random = new Random();
+            for (int i = 0; i < requests.length; ++i) {
+                var tokenId = benchmark.tokenIds[
+                        random.nextInt(benchmark.tokenIds.length)];
+                requests[i] = new FakeRequest("GET", "/spaces")
+                        .header("Authorization", "Bearer " + tokenId);
+            }
+        }
+
+        FakeRequest nextRequest() {
+            var request = requests[next++ & (requests.length - 1)];
+            request.reset();
+            response.reset();
+            return request;
+        }
+    }
+
+    @Benchmark
+    public Object validateToken(Exchange exchange) {
+        var request = exchange.nextRequest();
+        tokenController.validateToken(request, exchange.response);
+        return request.attribute("subject");
+    }
+}
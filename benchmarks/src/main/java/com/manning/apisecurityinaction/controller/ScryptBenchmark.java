@@ -0,0 +1,41 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.lambdaworks.crypto.SCryptUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hash latency for each scrypt parameter set, to check what
+ * {@link PasswordHasher#calibrate} picks on a given machine. The memory
+ * each hash needs is printed at setup; run with {@code -prof gc} to see
+ * it confirmed as bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ScryptBenchmark {
+
+    @Param({"16384", "32768", "65536", "131072", "262144"})
+    public int n;
+
+    @Param({"8"})
+    public int r;
+
+    @Param({"1"})
+    public int p;
+
+    @Setup
+    public void setup() {
+        System.out.printf("%nscrypt N=%d r=%d p=%d needs %d KiB per hash%n",
+                n, r, p, PasswordHasher.memoryCost(n, r, p) / 1024);
+    }
+
+    @Benchmark
+    public String hash() {
+        return SCryptUtil.scrypt("correct horse battery staple", n, r, p);
+    }
+}
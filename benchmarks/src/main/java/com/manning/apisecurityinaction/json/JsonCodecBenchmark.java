@@ -0,0 +1,80 @@
+package com.manning.apisecurityinaction.json;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming codec with the org.json path it replaced, for a
+ * message body and a token's attributes. {@code parseBuffered} shows what
+ * the streaming parse would cost if it read Spark's request wrapper, which
+ * copies the body into a byte array first. Run with {@code -prof gc} and
+ * compare {@code gc.alloc.rate.norm} (bytes allocated per operation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    byte[] body;
+    Map<String, String> attributes;
+    String attributesJson;
+
+    @Setup
+    public void setup() {
+        body = ("{\"author\":\"user42\",\"message\":\"Meeting moved to 3pm, " +
+                "see the updated agenda in the shared space\"}")
+                .getBytes(StandardCharsets.UTF_8);
+        attributes = new LinkedHashMap<>();
+        attributes.put("scope", "create_space post_message read_message");
+        attributes.put("cnf", "x5t#S256-3b2f0c");
+        attributesJson = JsonOutput.toString(attributes);
+    }
+
+    @Benchmark
+    public String parseOrgJson() {
+        // What the controllers did: read the body to a String, then parse
+        var json = new JSONObject(new String(body, StandardCharsets.UTF_8));
+        return json.getString("author") + json.getString("message");
+    }
+
+    @Benchmark
+    public String parseStreaming() throws IOException {
+        var json = JsonFields.read(new ByteArrayInputStream(body), "author", "message");
+        return json.getString("author") + json.getString("message");
+    }
+
+    @Benchmark
+    public String parseBuffered() throws IOException {
+        // Spark's HttpRequestWrapper.getInputStream() copies the body first
+        var copy = new ByteArrayInputStream(body).readAllBytes();
+        var json = JsonFields.read(new ByteArrayInputStream(copy), "author", "message");
+        return json.getString("author") + json.getString("message");
+    }
+
+    @Benchmark
+    public Map<String, String> attributesOrgJson() {
+        var encoded = new JSONObject(attributes).toString();
+        var json = new JSONObject(encoded);
+        var decoded = new HashMap<String, String>();
+        for (var key : json.keySet()) {
+            decoded.put(key, json.getString(key));
+        }
+        return decoded;
+    }
+
+    @Benchmark
+    public Map<String, String> attributesStreaming() {
+        var encoded = JsonOutput.toString(attributes);
+        var decoded = new HashMap<String, String>();
+        JsonFields.readStrings(encoded, decoded);
+        return decoded;
+    }
+}
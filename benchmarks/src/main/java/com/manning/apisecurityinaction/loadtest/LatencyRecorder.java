@@ -0,0 +1,66 @@
+package com.manning.apisecurityinaction.loadtest;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A log-linear latency histogram in microseconds. Values below 128us get
+ * their own bucket and every power of two above that is split into 64
+ * buckets, so a percentile is within about 1.6% of the recorded value
+ * all the way up to an hour. Recording is lock-free.
+ */
+class LatencyRecorder {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final long MAX_MICROS = 3_600_000_000L;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_MICROS) + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        var micros = Math.min(Math.max(nanos / 1000, 0), MAX_MICROS);
+        counts.incrementAndGet(index(micros));
+        total.incrementAndGet();
+        max.accumulate(micros);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given quantile.
+     */
+    long percentileMicros(double quantile) {
+        var target = (long) Math.ceil(quantile * total.get());
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            cumulative += counts.get(i);
+            if (cumulative >= target && cumulative > 0) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        var shift = 63 - Long.numberOfLeadingZeros(micros) - 6;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (micros >> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        var shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        var mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1L) << shift) - 1;
+    }
+}
@@ -0,0 +1,502 @@
+package com.manning.apisecurityinaction.loadtest;
+
+import com.manning.apisecurityinaction.Main;
+import org.json.JSONObject;
+import spark.Spark;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// java -cp benchmarks/target/benchmarks.jar -Dloadtest.rate=20 \
+//     -Dloadtest.scenario=login,create_space,post_message*5,logout \
+//     com.manning.apisecurityinaction.loadtest.LoadTest
+//
+// Starts Main on an ephemeral port with freshly generated keystores and
+// rate limits lifted, or targets -Dloadtest.url, and runs the scenario at
+// a fixed number of iterations per second spread over the clients. Each
+// client keeps to its own schedule, with the steps of an iteration due at
+// even offsets across its interval. Every request is timed from when it
+// was due to be sent, not from when it was sent, so a server stall is
+// charged to every request it delayed rather than hidden by the clients
+// waiting (coordinated omission).
+public class LoadTest {
+    private static final String PASSWORD = "load-test-password";
+    private static final String STORE_PASSWORD = "changeit";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    enum Step {
+        REGISTER("POST /users"),
+        LOGIN("POST /sessions"),
+        CREATE_SPACE("POST /spaces"),
+        POST_MESSAGE("POST /spaces/:spaceId/messages"),
+        LOGOUT("DELETE /sessions");
+
+        final String endpoint;
+
+        Step(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private static final class Endpoint {
+        final LatencyRecorder latency = new LatencyRecorder();
+        final Map<String, LongAdder> errors = new ConcurrentSkipListMap<>();
+
+        void record(long nanos, String error) {
+            latency.record(nanos);
+            if (error != null) {
+                errors.computeIfAbsent(error, key -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private final HttpClient http;
+    private final URI base;
+    private final List<Step> steps;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final Map<Step, Endpoint> endpoints = new EnumMap<>(Step.class);
+    private final LongAdder completed = new LongAdder();
+    private final LatencyRecorder iterations = new LatencyRecorder();
+    private final List<Client> clients = new ArrayList<>();
+
+    LoadTest(HttpClient http, URI base, List<Step> steps) {
+        this.http = http;
+        this.base = base;
+        this.steps = steps;
+        for (var step : Step.values()) {
+            endpoints.put(step, new Endpoint());
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        var scenario = System.getProperty("loadtest.scenario",
+                "login,create_space,post_message*5,logout");
+        var steps = parseScenario(scenario);
+        var rate = Double.parseDouble(System.getProperty("loadtest.rate", "20"));
+        var clientCount = Integer.getInteger("loadtest.clients", 32);
+        var userCount = Integer.getInteger("loadtest.users", clientCount);
+        var warmup = Duration.ofSeconds(Long.getLong("loadtest.warmup.seconds", 10));
+        var duration = Duration.ofSeconds(Long.getLong("loadtest.duration.seconds", 30));
+
+        var target = System.getProperty("loadtest.url");
+        SSLContext ssl;
+        URI base;
+        if (target != null) {
+            ssl = SSLContext.getDefault();
+            base = URI.create(target);
+        } else {
+            ssl = startServer(Files.createTempDirectory("natter-loadtest"));
+            base = URI.create("https://localhost:" + Spark.port());
+        }
+        var http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .sslContext(ssl)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        var test = new LoadTest(http, base, steps);
+        System.out.printf("Seeding %d users for %d clients against %s%n",
+                userCount, clientCount, base);
+        test.setup(clientCount, userCount);
+        System.out.printf("Running %s at %.1f/s: %ds warmup, %ds measured%n",
+                scenario, rate, warmup.toSeconds(), duration.toSeconds());
+        test.run(rate, warmup, duration);
+        test.report(duration);
+        System.exit(0);
+    }
+
+    static List<Step> parseScenario(String spec) {
+        var steps = new ArrayList<Step>();
+        for (var part : spec.split(",")) {
+            var name = part.trim();
+            var repeat = 1;
+            var star = name.indexOf('*');
+            if (star >= 0) {
+                repeat = Integer.parseInt(name.substring(star + 1).trim());
+                name = name.substring(0, star).trim();
+            }
+            var step = Step.valueOf(name.toUpperCase(Locale.ROOT));
+            for (int i = 0; i < repeat; ++i) {
+                steps.add(step);
+            }
+        }
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("empty scenario");
+        }
+
+        // Each iteration starts as the client's seeded user, with a token
+        // and a space from setup. Only tokens from the scenario's own
+        // login may be revoked, or later iterations would lose theirs.
+        boolean token = true, ownToken = false, space = true;
+        for (var step : steps) {
+            switch (step) {
+                case REGISTER:
+                    token = ownToken = space = false;
+                    break;
+                case LOGIN:
+                    token = ownToken = true;
+                    break;
+                case CREATE_SPACE:
+                    require(token, step, "login");
+                    space = true;
+                    break;
+                case POST_MESSAGE:
+                    require(token, step, "login");
+                    require(space, step, "create_space");
+                    break;
+                case LOGOUT:
+                    require(ownToken, step, "login");
+                    token = ownToken = false;
+                    break;
+            }
+        }
+        return steps;
+    }
+
+    private static void require(boolean condition, Step step, String missing) {
+        if (!condition) {
+            throw new IllegalArgumentException(step.name().toLowerCase(Locale.ROOT)
+                    + " needs a " + missing + " earlier in the scenario");
+        }
+    }
+
+    /**
+     * Generates a TLS key pair for localhost and an HMAC key, lifts the
+     * rate limits unless a config is given, and starts the API on an
+     * ephemeral port. Returns a context that trusts the generated cert.
+     */
+    private static SSLContext startServer(Path dir) throws Exception {
+        var tlsStore = dir.resolve("localhost.p12");
+        var keyStore = dir.resolve("keystore.p12");
+        keytool("-genkeypair", "-alias", "localhost", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-keystore", tlsStore.toString(), "-storetype", "PKCS12",
+                "-storepass", STORE_PASSWORD);
+        keytool("-genseckey", "-keyalg", "HmacSHA256", "-keysize", "256",
+                "-alias", "hmac-key", "-keystore", keyStore.toString(),
+                "-storetype", "PKCS12", "-storepass", STORE_PASSWORD);
+        tlsStore.toFile().deleteOnExit();
+        keyStore.toFile().deleteOnExit();
+
+        System.setProperty("tls.keystore.path", tlsStore.toString());
+        System.setProperty("tls.keystore.password", STORE_PASSWORD);
+        System.setProperty("keystore.path", keyStore.toString());
+        System.setProperty("keystore.password", STORE_PASSWORD);
+        if (System.getProperty("ratelimit.config") == null) {
+            var rateLimits = dir.resolve("ratelimit.properties");
+            Files.writeString(rateLimits, "limit.default=1000000,1000000\n"
+                    + "limit.authenticate=1000000,1000000\n");
+            rateLimits.toFile().deleteOnExit();
+            System.setProperty("ratelimit.config", rateLimits.toString());
+        }
+        dir.toFile().deleteOnExit();
+
+        Main.main("0");
+        Spark.awaitInitialization();
+
+        var tls = KeyStore.getInstance("PKCS12");
+        try (var in = Files.newInputStream(tlsStore)) {
+            tls.load(in, STORE_PASSWORD.toCharArray());
+        }
+        var trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry("localhost", tls.getCertificate("localhost"));
+        var trustManagers = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        var ssl = SSLContext.getInstance("TLS");
+        ssl.init(null, trustManagers.getTrustManagers(), null);
+        return ssl;
+    }
+
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(args));
+        var process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        var output = new String(process.getInputStream().readAllBytes(),
+                StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed: " + output);
+        }
+    }
+
+    /**
+     * Registers the users, then logs each client in and creates it a
+     * space. Tokens last ten minutes, so runs longer than that should
+     * log in as part of the scenario.
+     */
+    private void setup(int clientCount, int userCount) throws Exception {
+        var pool = Executors.newFixedThreadPool(Math.min(clientCount, 16));
+        try {
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < userCount; ++i) {
+                var user = new Client(-1, "lt" + runId + "u" + i);
+                tasks.add(() -> user.seed(Step.REGISTER));
+            }
+            for (var task : pool.invokeAll(tasks)) {
+                task.get();
+            }
+
+            tasks.clear();
+            for (int i = 0; i < clientCount; ++i) {
+                var client = new Client(i, "lt" + runId + "u" + (i % userCount));
+                clients.add(client);
+                tasks.add(() -> {
+                    client.seed(Step.LOGIN);
+                    client.seed(Step.CREATE_SPACE);
+                    client.seedToken = client.token;
+                    client.seedSpace = client.space;
+                    return null;
+                });
+            }
+            for (var task : pool.invokeAll(tasks)) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void run(double rate, Duration warmup, Duration duration)
+            throws InterruptedException {
+        var interval = (long) (clients.size() * 1e9 / rate);
+        var start = System.nanoTime() + 10_000_000L;
+        var measureFrom = start + warmup.toNanos();
+        var end = measureFrom + duration.toNanos();
+
+        var threads = new ArrayList<Thread>();
+        for (var client : clients) {
+            var thread = new Thread(() -> {
+                var next = start + client.id * interval / clients.size();
+                while (next < end) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    if (System.nanoTime() < next) {
+                        continue;
+                    }
+                    client.iterate(next, interval / steps.size(), next >= measureFrom);
+                    next += interval;
+                }
+            }, "load-client-" + client.id);
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void report(Duration duration) {
+        var seconds = duration.toNanos() / 1e9;
+        System.out.printf("%nCompleted %d iterations (%.1f/s)%n",
+                completed.sum(), completed.sum() / seconds);
+        System.out.printf("Each request is timed from its scheduled send time and each"
+                + " iteration from its%nscheduled start, correcting for coordinated"
+                + " omission.%n%n");
+        System.out.printf("%-32s %8s %8s %7s %9s %9s %9s %9s%n", "endpoint",
+                "count", "rate/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        var errors = new StringBuilder();
+        for (var entry : endpoints.entrySet()) {
+            var endpoint = entry.getValue();
+            var latency = endpoint.latency;
+            if (latency.count() == 0) {
+                continue;
+            }
+            var failed = endpoint.errors.values().stream()
+                    .mapToLong(LongAdder::sum).sum();
+            System.out.printf("%-32s %8d %8.1f %7d %9.2f %9.2f %9.2f %9.2f%n",
+                    entry.getKey().endpoint, latency.count(), latency.count() / seconds,
+                    failed, latency.percentileMicros(0.5) / 1e3,
+                    latency.percentileMicros(0.99) / 1e3,
+                    latency.percentileMicros(0.999) / 1e3, latency.maxMicros() / 1e3);
+            endpoint.errors.forEach((error, count) -> errors.append(String.format(
+                    "  %s %s: %d%n", entry.getKey().endpoint, error, count.sum())));
+        }
+        if (iterations.count() > 0) {
+            System.out.printf("%-32s %8d %8.1f %7s %9.2f %9.2f %9.2f %9.2f%n",
+                    "iteration", iterations.count(), iterations.count() / seconds,
+                    "-", iterations.percentileMicros(0.5) / 1e3,
+                    iterations.percentileMicros(0.99) / 1e3,
+                    iterations.percentileMicros(0.999) / 1e3, iterations.maxMicros() / 1e3);
+        }
+        if (errors.length() > 0) {
+            System.out.printf("%nErrors:%n%s", errors);
+        }
+    }
+
+    private final class Client {
+        final int id;
+        final String seedUser;
+        String seedToken;
+        String seedSpace;
+        String username;
+        String token;
+        String space;
+        int registrations;
+        int spaces;
+        int messages;
+
+        Client(int id, String seedUser) {
+            this.id = id;
+            this.seedUser = seedUser;
+            this.username = seedUser;
+        }
+
+        /**
+         * Runs one setup request, backing off while the server is shedding
+         * load.
+         */
+        Void seed(Step step) throws Exception {
+            for (int attempt = 0; ; ++attempt) {
+                var response = send(step);
+                var status = response.statusCode();
+                if (status / 100 == 2) {
+                    return null;
+                }
+                if ((status != 503 && status != 429) || attempt == 20) {
+                    throw new IllegalStateException(step.endpoint + " failed during setup: "
+                            + status + " " + response.body());
+                }
+                var retryAfter = response.headers().firstValueAsLong("Retry-After").orElse(1);
+                Thread.sleep(Math.min(retryAfter, 5) * 1000);
+            }
+        }
+
+        void iterate(long scheduled, long stepInterval, boolean recording) {
+            username = seedUser;
+            token = seedToken;
+            space = seedSpace;
+            var due = scheduled;
+            for (var step : steps) {
+                LockSupport.parkNanos(due - System.nanoTime());
+                while (System.nanoTime() < due) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+                if (step == Step.REGISTER) {
+                    username = "lt" + runId + "c" + id + "n" + ++registrations;
+                }
+                String error = null;
+                try {
+                    var status = send(step).statusCode();
+                    if (status / 100 != 2) {
+                        error = Integer.toString(status);
+                    }
+                } catch (IOException e) {
+                    error = e.getClass().getSimpleName();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                var now = System.nanoTime();
+                if (recording) {
+                    endpoints.get(step).record(now - due, error);
+                }
+                if (error != null) {
+                    discardToken();
+                    return;
+                }
+                due += stepInterval;
+            }
+            if (recording) {
+                iterations.record(System.nanoTime() - scheduled);
+                completed.increment();
+            }
+        }
+
+        /**
+         * Logs out of a session the scenario opened itself, so an iteration
+         * that fails part way does not leave a live token behind.
+         */
+        private void discardToken() {
+            if (token == null || token.equals(seedToken)) {
+                return;
+            }
+            try {
+                send(Step.LOGOUT);
+            } catch (IOException e) {
+                // The token expires on its own
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private HttpResponse<String> send(Step step)
+                throws IOException, InterruptedException {
+            HttpRequest request;
+            switch (step) {
+                case REGISTER:
+                    request = post("/users", new JSONObject()
+                            .put("username", username)
+                            .put("password", PASSWORD)).build();
+                    break;
+                case LOGIN:
+                    var credentials = Base64.getEncoder().encodeToString(
+                            (username + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+                    request = post("/sessions", null)
+                            .header("Authorization", "Basic " + credentials).build();
+                    break;
+                case CREATE_SPACE:
+                    request = authorized(post("/spaces", new JSONObject()
+                            .put("name", "lt" + runId + "c" + id + "s" + ++spaces)
+                            .put("owner", username)));
+                    break;
+                case POST_MESSAGE:
+                    request = authorized(post(space + "/messages", new JSONObject()
+                            .put("author", username)
+                            .put("message", "load test message " + ++messages)));
+                    break;
+                case LOGOUT:
+                    request = authorized(HttpRequest.newBuilder(base.resolve("/sessions"))
+                            .timeout(REQUEST_TIMEOUT).DELETE());
+                    break;
+                default:
+                    throw new AssertionError(step);
+            }
+
+            var response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() / 100 == 2) {
+                switch (step) {
+                    case REGISTER:
+                        token = null;
+                        space = null;
+                        break;
+                    case LOGIN:
+                        token = new JSONObject(response.body()).getString("token");
+                        break;
+                    case CREATE_SPACE:
+                        space = new JSONObject(response.body()).getString("uri");
+                        break;
+                    case LOGOUT:
+                        token = null;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return response;
+        }
+
+        private HttpRequest.Builder post(String path, JSONObject body) {
+            return HttpRequest.newBuilder(base.resolve(path))
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Content-Type", "application/json")
+                    .POST(body == null ? HttpRequest.BodyPublishers.noBody()
+                            : HttpRequest.BodyPublishers.ofString(body.toString()));
+        }
+
+        private HttpRequest authorized(HttpRequest.Builder builder) {
+            return builder.header("Authorization", "Bearer " + token).build();
+        }
+    }
+}
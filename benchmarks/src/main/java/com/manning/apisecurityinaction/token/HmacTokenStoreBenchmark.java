@@ -0,0 +1,136 @@
+package com.manning.apisecurityinaction.token;
+
+import org.openjdk.jmh.annotations.*;
+import spark.Request;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// mvn -q install -DskipTests && mvn -q -f benchmarks/pom.xml package
+// java -jar benchmarks/target/benchmarks.jar HmacTokenStoreBenchmark -prof gc
+//
+// Compare ops/s and gc.alloc.rate.norm (bytes per verification) between
+// the legacy and current rows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HmacTokenStoreBenchmark {
+
+    private HmacTokenStore current;
+    private LegacyHmacTokenStore legacy;
+    private String currentToken;
+    private String legacyToken;
+
+    @Setup
+    public void setup() {
+        var key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        var macKey = new SecretKeySpec(key, "HmacSHA256");
+        var delegate = new FixedTokenStore();
+
+        current = new HmacTokenStore(delegate, macKey);
+        legacy = new LegacyHmacTokenStore(delegate, macKey);
+        currentToken = current.create(null, delegate.token);
+        legacyToken = legacy.create(null, delegate.token);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<TokenStore.Token> verifyCurrent() {
+        return current.read(null, currentToken);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<TokenStore.Token> verifyLegacy() {
+        return legacy.read(null, legacyToken);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<TokenStore.Token> verifyCurrentContended() {
+        return current.read(null, currentToken);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<TokenStore.Token> verifyLegacyContended() {
+        return legacy.read(null, legacyToken);
+    }
+
+    /**
+     * Delegate that always returns the same token, so the benchmark
+     * measures only the HMAC layer.
+     */
+    static class FixedTokenStore implements TokenStore {
+        private final String tokenId = Base64url.encode(new byte[20]);
+        private final Token token = new Token(
+                Instant.now().plusSeconds(3600), "demo");
+        private final Optional<Token> result = Optional.of(token);
+
+        @Override
+        public String create(Request request, Token token) {
+            return tokenId;
+        }
+
+        @Override
+        public Optional<Token> read(Request request, String tokenId) {
+            return result;
+        }
+
+        @Override
+        public void revoke(Request request, String tokenId) {
+        }
+    }
+
+    /**
+     * The original HmacTokenStore verification path, kept as a baseline.
+     */
+    static class LegacyHmacTokenStore {
+        private final TokenStore delegate;
+        private final Key macKey;
+
+        LegacyHmacTokenStore(TokenStore delegate, Key macKey) {
+            this.delegate = delegate;
+            this.macKey = macKey;
+        }
+
+        String create(Request request, TokenStore.Token token) {
+            var tokenId = delegate.create(request, token);
+            return tokenId + '.' + Base64url.encode(hmac(tokenId));
+        }
+
+        Optional<TokenStore.Token> read(Request request, String tokenId) {
+            var index = tokenId.lastIndexOf('.');
+            if (index == -1) {
+                return Optional.empty();
+            }
+            var realTokenId = tokenId.substring(0, index);
+            var provided = Base64url.decode(tokenId.substring(index + 1));
+            var computed = hmac(realTokenId);
+
+            if (!MessageDigest.isEqual(provided, computed)) {
+                return Optional.empty();
+            }
+            return delegate.read(request, realTokenId);
+        }
+
+        private byte[] hmac(String tokenId) {
+            try {
+                var mac = Mac.getInstance(macKey.getAlgorithm());
+                mac.init(macKey);
+                return mac.doFinal(tokenId.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
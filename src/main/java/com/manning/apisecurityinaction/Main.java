@@ -1,9 +1,15 @@
 package com.manning.apisecurityinaction;
 
-import com.google.common.util.concurrent.*;
 import com.manning.apisecurityinaction.controller.*;
 import com.manning.apisecurityinaction.token.*;
+import com.manning.apisecurityinaction.metrics.*;
+import com.manning.apisecurityinaction.persistence.*;
 import com.manning.apisecurityinaction.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Properties;
 import java.util.Set;
 import org.dalesbred.Database;
 import org.h2.jdbcx.JdbcConnectionPool;
@@ -15,6 +21,12 @@ import spark.*;
 import static spark.Spark.secure;
 import java.security.KeyStore;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.DriverManager;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
  
 // mvn clean compile exec:java
@@ -25,18 +37,58 @@ import java.io.FileInputStream;
 // curl -H 'Content-Type: application/json' -u test:password  -X POST https://localhost:4567/sessions
 public class Main {
   public static void main(String... args) throws Exception {
-    secure("localhost.p12", "changeit", null, null);
-    var datasource = JdbcConnectionPool.create(
-        "jdbc:h2:mem:natter", "natter", "password");
+    secure(System.getProperty("tls.keystore.path", "localhost.p12"),
+        System.getProperty("tls.keystore.password", "changeit"), null, null);
+    // Keep the in-memory database alive when the pools close idle connections.
+    // Only an admin may change the setting, so the API pool uses the bare URL.
+    var url = "jdbc:h2:mem:natter";
+    var datasource = JdbcConnectionPool.create(url + ";DB_CLOSE_DELAY=-1",
+        "natter", "password");
     var database = Database.forDataSource(datasource);
-    createTables(database);
-    datasource = JdbcConnectionPool.create("jdbc:h2:mem:natter", "natter_api_user", "password");    
-    database = Database.forDataSource(datasource);
+    var snapshotDir = System.getProperty("snapshot.dir");
+    DatabaseSnapshots snapshots = null;
+    if (snapshotDir != null) {
+      snapshots = new DatabaseSnapshots(datasource, Paths.get(snapshotDir),
+          Integer.getInteger("snapshot.deltas.per.full", 12));
+    }
+    if (snapshots == null || !snapshots.restore()) {
+      createTables(database);
+    }
+    var idBlockSize = Integer.getInteger("ids.block.size", 100);
+    IdAllocator.prepareSequence(database, "space_id_seq", "spaces", "space_id",
+        idBlockSize);
+    IdAllocator.prepareSequence(database, "msg_id_seq", "messages", "msg_id",
+        idBlockSize);
+    IdAllocator.prepareSequence(database, "audit_id_seq", "audit_log", "audit_id",
+        idBlockSize);
+    var metrics = new Metrics();
+    metrics.histogramFamily("natter_db_pool_wait_seconds",
+        "Time spent waiting for a database connection");
+    var pool = new ConnectionPool(url, "natter_api_user", "password",
+        Integer.getInteger("db.pool.size", 10),
+        Duration.ofMillis(Long.getLong("db.pool.acquire.millis", 30_000)),
+        Duration.ofSeconds(Long.getLong("db.pool.idle.seconds", 300)),
+        Integer.getInteger("db.statement.cache", 64),
+        metrics.histogram("natter_db_pool_wait_seconds", ""));
+    metrics.gauge("natter_db_pool_active", "Connections in use", pool::active);
+    metrics.gauge("natter_db_pool_idle", "Open connections not in use", pool::idle);
+    metrics.gauge("natter_db_pool_waiting", "Threads waiting for a connection",
+        pool::waiting);
+    metrics.counter("natter_db_pool_timeouts_total",
+        "Connection requests that timed out", pool::timeouts);
+    metrics.counter("natter_db_statement_cache_hits_total",
+        "Prepared statements reused from the per-connection cache",
+        pool::statementCacheHits);
+    metrics.counter("natter_db_statement_cache_misses_total",
+        "Prepared statements that had to be prepared",
+        pool::statementCacheMisses);
+    database = Database.forDataSource(TimedDataSource.wrap(pool, metrics));
 
     var keyPassword = System.getProperty("keystore.password",       
         "changeit").toCharArray();                               
     var keyStore = KeyStore.getInstance("PKCS12");                    
-    keyStore.load(new FileInputStream("keystore.p12"),                
+    keyStore.load(new FileInputStream(
+        System.getProperty("keystore.path", "keystore.p12")),                
         keyPassword);                                             
  
     var macKey = keyStore.getKey("hmac-key", keyPassword);
@@ -45,64 +97,232 @@ public class Main {
 
     port(args.length > 0 ? Integer.parseInt(args[0])
      : spark.Service.SPARK_DEFAULT_PORT);
+    var httpThreads = Integer.getInteger("http.threads");
+    if (httpThreads != null) {
+      threadPool(httpThreads);
+    }
 
     // TokenStore tokenStore = new CookieTokenStore();
-    var databaseTokenStore = new DatabaseTokenStore(database);
-    var tokenStore = new HmacTokenStore(databaseTokenStore, macKey);
+    var reapers = new ArrayList<ExpiredTokenReaper>();
+    var shardPools = new ArrayList<ConnectionPool>();
+    TokenStore tokenStore;
+    switch (System.getProperty("token.store", "database")) {
+      case "stateless":
+        tokenStore = new StatelessTokenStore(macKey);
+        break;
+      case "database":
+        var databaseTokenStore = new DatabaseTokenStore(database);
+        reapers.add(startReaper(databaseTokenStore));
+        tokenStore = new HmacTokenStore(
+            cachedTokens(databaseTokenStore, metrics), macKey);
+        break;
+      case "sharded":
+        // A list of JDBC URLs, or a number of in-memory databases for
+        // local testing. Shards are named by position, so add new URLs
+        // at the end.
+        var shardSpec = System.getProperty("token.shards", "4");
+        var shardUrls = new ArrayList<String>();
+        var shardAdminUrls = new ArrayList<String>();
+        if (shardSpec.matches("\\d+")) {
+          for (int i = 0; i < Integer.parseInt(shardSpec); ++i) {
+            shardUrls.add("jdbc:h2:mem:natter-tokens-" + i);
+            shardAdminUrls.add("jdbc:h2:mem:natter-tokens-" + i + ";DB_CLOSE_DELAY=-1");
+          }
+        } else {
+          // Only create the schema on external shards when asked to
+          var initialise = System.getProperty("token.shards.admin.user") != null;
+          for (var shardUrl : shardSpec.split(",")) {
+            if (!shardUrl.isBlank()) {
+              shardUrls.add(shardUrl.trim());
+              shardAdminUrls.add(initialise ? shardUrl.trim() : null);
+            }
+          }
+        }
+        var shardCount = shardUrls.size();
+        var shards = new LinkedHashMap<String, DatabaseTokenStore>();
+        for (int i = 0; i < shardCount; ++i) {
+          var shard = new DatabaseTokenStore(createTokenShard(i, shardUrls.get(i),
+              shardAdminUrls.get(i), metrics, shardPools));
+          reapers.add(startReaper(shard));
+          shards.put("shard-" + i, shard);
+        }
+        // Set while growing from token.shards.previous shards, so tokens
+        // on their old shard can still be found
+        var previousCount = Integer.getInteger("token.shards.previous", shardCount);
+        var previousShards = new ArrayList<String>();
+        for (int i = 0; i < previousCount && i < shardCount; ++i) {
+          previousShards.add("shard-" + i);
+        }
+        tokenStore = new HmacTokenStore(cachedTokens(
+            new ShardedTokenStore(shards,
+                previousCount < shardCount ? previousShards : null),
+            metrics), macKey);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown token.store: " +
+            System.getProperty("token.store"));
+    }
 
-    var rateLimiter = RateLimiter.create(2.0d);       
-    var userController = new UserController(database);
-    var spaceController = new SpaceController(database); 
-    var auditController = new AuditController(database); 
+    var rateLimits = new Properties();
+    var rateLimitConfig = System.getProperty("ratelimit.config");
+    try (var in = rateLimitConfig != null
+        ? new FileInputStream(rateLimitConfig)
+        : Main.class.getResourceAsStream("/ratelimit.properties")) {
+      rateLimits.load(in);
+    }
+    var rateLimitFilter = new RateLimitFilter(rateLimits);
+    var credentialCache = new CredentialCache(
+        Long.getLong("auth.cache.size", 10_000),
+        Duration.ofSeconds(Long.getLong("auth.cache.ttl", 300)));
+    var permissionIndex = PermissionIndex.load(database);
+    var scryptThreads = Integer.getInteger("scrypt.threads",
+        Runtime.getRuntime().availableProcessors());
+    var scryptMaxMemory = Long.getLong("scrypt.max.memory", 256L * 1024 * 1024);
+    var scryptN = Integer.getInteger("scrypt.n");
+    if (scryptN == null) {
+      // The cost only has to fit the budget once; the hasher's memory
+      // semaphore limits how many hashes run at the same time
+      scryptN = PasswordHasher.calibrate(8, 1,
+          Duration.ofMillis(Long.getLong("scrypt.target.millis", 100)),
+          32768, 1 << 20, scryptMaxMemory);
+    }
+    var passwordHasher = new PasswordHasher(scryptThreads,
+        Integer.getInteger("scrypt.queue", 32), scryptMaxMemory,
+        scryptN, 8, 1);
+    var userController = new UserController(database, credentialCache,
+        permissionIndex, passwordHasher);
+    var idRefillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      var thread = new Thread(runnable, "id-allocator");
+      thread.setDaemon(true);
+      return thread;
+    });
+    var messageIngester = new MessageIngester(database,
+        new IdAllocator(database, "msg_id_seq", idBlockSize, idRefillExecutor),
+        Integer.getInteger("ingest.threads", 2),
+        Integer.getInteger("ingest.batch.size", 100),
+        Long.getLong("ingest.max.delay.millis", 2),
+        Long.getLong("ingest.commit.timeout.millis", 5_000));
+    // Each event stream holds a server thread (Jetty's default pool is
+    // 200), so at most half of them may be taken by subscribers
+    var serverThreads = httpThreads != null ? httpThreads : 200;
+    var spaceEvents = new SpaceEvents(
+        Integer.getInteger("events.ring.size", 256),
+        Integer.getInteger("events.queue.size", 64),
+        Math.min(Integer.getInteger("events.max.subscribers", 100),
+            serverThreads / 2),
+        Integer.getInteger("events.max.per.space", 20),
+        Long.getLong("events.max.stream.millis", 300_000),
+        Duration.ofSeconds(Long.getLong("events.idle.seconds", 60)).toMillis());
+    var spaceController = new SpaceController(database, permissionIndex,
+        new IdAllocator(database, "space_id_seq", idBlockSize, idRefillExecutor),
+        messageIngester, spaceEvents);
+    var auditWriter = new AuditWriter(database,
+        new IdAllocator(database, "audit_id_seq", idBlockSize, idRefillExecutor),
+        Integer.getInteger("audit.queue.capacity", 10_000),
+        Integer.getInteger("audit.batch.size", 500),
+        Long.getLong("audit.flush.millis", 200),
+        AuditWriter.Backpressure.valueOf(
+            System.getProperty("audit.backpressure", "SYNCHRONOUS")));
+    auditWriter.start();
+    if (snapshots != null) {
+      snapshots.committedBelow("messages", messageIngester::committedBelow);
+      snapshots.committedBelow("audit_log", auditWriter::committedBelow);
+      snapshots.start(Duration.ofSeconds(
+          Long.getLong("snapshot.interval.seconds", 60)));
+    }
+    var auditController = new AuditController(database, auditWriter);
     var tokenController = new TokenController(tokenStore);
 
-    Spark.staticFiles.location("/public");
+    metrics.counter("natter_rate_limit_rejections_total",
+        "Requests rejected with 429 by the rate limiter",
+        rateLimitFilter::rejectionCount);
+    metrics.counter("natter_credential_cache_hits_total",
+        "Basic auth checks that skipped scrypt", credentialCache::hitCount);
+    metrics.counter("natter_credential_cache_misses_total",
+        "Basic auth checks that ran scrypt", credentialCache::missCount);
+    metrics.counter("natter_audit_dropped_total",
+        "Audit events dropped because the queue was full",
+        auditWriter::droppedCount);
+    metrics.counter("natter_message_batches_total",
+        "Group commits written by the message ingester",
+        messageIngester::batchCount);
+    metrics.counter("natter_messages_ingested_total",
+        "Messages written by the message ingester",
+        messageIngester::messageCount);
+    metrics.counter("natter_event_evictions_total",
+        "Event stream subscribers evicted for falling behind",
+        spaceEvents::evictionCount);
+    metrics.histogramFamily("natter_http_request_duration_seconds",
+        "Request latency by route and status");
+    var metricsAdmins = userList(System.getProperty("metrics.admins", ""));
+    var auditAdmins = userList(System.getProperty("audit.admins", ""));
+
+    var staticAssets = new StaticAssets("/public",
+        Long.getLong("static.max.age", 86_400));
 
-    before((request, response) -> {
-      if (!rateLimiter.tryAcquire()) {                
-        response.header("Retry-After", "2");          
-        halt(429);                                    
+    before(new CorsFilter(Set.of("https://localhost:9999")));
+
+    afterAfter((request, response) -> {
+      if (!StaticAssets.isAsset(request)) {
+        SecurityHeaders.apply(response);
       }
     });
-    before(new CorsFilter(Set.of("https://localhost:9999")));
-    before(((request, response) -> {  
+    afterAfter(auditController::auditRequestEnd);    
+    afterAfter((request, response) -> {
+      Long start = request.attribute("request_start");
+      if (start == null) return;
+      metrics.histogram("natter_http_request_duration_seconds",
+          Metrics.label("route", request.attribute("route")) + "," +
+          Metrics.label("status", Integer.toString(response.status())))
+        .recordSince(start);
+    });
+
+    Filter requireJson = (request, response) -> {
       if (request.requestMethod().equals("POST") &&             
           !"application/json".equals(request.contentType())) {  
         halt(415, new JSONObject().put(                         
             "error", "Only application/json supported"
         ).toString());
       }
-    }));
-    before(userController::authenticate);
-    before(tokenController::validateToken);
-    before(auditController::auditRequestStart); 
-    before("/sessions", userController::requireAuthentication);
-    before("/spaces", userController::requireAuthentication);
-    before("/spaces/:spaceId/messages", userController.requirePermission("POST", "w"));
-    before("/spaces/:spaceId/messages/*", userController.requirePermission("GET", "r"));
-    before("/spaces/:spaceId/members", userController.requirePermission("POST", "rwd"));
-
-
-    afterAfter((request, response) -> {
-      response.type("application/json;charset=utf-8");
-      response.header("X-Content-Type-Options", "nosniff");
-      response.header("X-Frame-Options", "DENY");
-      response.header("X-XSS-Protection", "0");
-      response.header("Cache-Control", "no-store");
-      response.header("Content-Security-Policy",
-        "default-src 'none'; frame-ancestors 'none'; sandbox");
-      response.header("Server", "");
-      response.header("Strict-Transport-Security", "max-age=30"); // "max-age=31536000");
-    });
-    afterAfter(auditController::auditRequestEnd);    
+    };
+    var requireMetricsAdmin = requireAdmin(metricsAdmins);
+    var requireAuditAdmin = requireAdmin(auditAdmins);
+    Filter authenticated = userController::requireAuthentication;
+    var canRead = metrics.timed("requirePermission",
+        userController.requirePermission("GET", "r"));
+    var canWrite = metrics.timed("requirePermission",
+        userController.requirePermission("POST", "w"));
+    var canAdmin = metrics.timed("requirePermission",
+        userController.requirePermission("POST", "rwd"));
 
-    get("/logs", auditController::readAuditLog);
-    post("/users", userController::registerUser);
-    post("/spaces", spaceController::createSpace); 
-    post("/spaces", spaceController::createSpace);
-    post("/spaces/:spaceId/members", spaceController::addMember);
-    post("/sessions", tokenController::login);
-    delete("/sessions", tokenController::logout);
+    new RouteTable(
+        requireJson,
+        // Throttle before any credential check, so a flood of bad tokens
+        // or passwords never reaches the token store or scrypt
+        rateLimitFilter,
+        rateLimitFilter.preAuthentication(),
+        metrics.timed("authenticate", userController::authenticate),
+        metrics.timed("validateToken", tokenController::validateToken),
+        metrics.timed("audit", auditController::auditRequestStart))
+      .get("/metrics", (request, response) -> {
+        response.type("text/plain; version=0.0.4; charset=utf-8");
+        return metrics.scrape();
+      }, authenticated, requireMetricsAdmin)
+      .get("/logs", auditController::readAuditLog)
+      .get("/logs/export", auditController::exportAuditLog,
+          authenticated, requireAuditAdmin)
+      .post("/users", userController::registerUser)
+      .post("/spaces", spaceController::createSpace, authenticated)
+      .post("/spaces/:spaceId/messages", spaceController::postMessage, canWrite)
+      .get("/spaces/:spaceId/messages", spaceController::findMessages, canRead)
+      .get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage,
+          canRead)
+      .post("/spaces/:spaceId/members", spaceController::addMember, canAdmin)
+      .get("/spaces/:spaceId/events", spaceEvents::stream, canRead)
+      .post("/sessions", tokenController::login, authenticated)
+      .delete("/sessions", tokenController::logout, authenticated)
+      .install();
+    staticAssets.install();
 
     internalServerError(new JSONObject()
       .put("error", "internal server error").toString());
@@ -112,13 +332,105 @@ public class Main {
     exception(IllegalArgumentException.class, Main::badRequest);
     exception(JSONException.class, Main::badRequest);
     exception(EmptyResultException.class, (e, request, response) -> response.status(404));
+    exception(MessageIngester.CommitTimeoutException.class, (e, request, response) -> {
+      response.status(503);
+      response.header("Retry-After", "1");
+      response.body(new JSONObject().put("error", e.getMessage()).toString());
+    });
+    exception(PasswordHasher.OverloadedException.class, (e, request, response) -> {
+      response.status(503);
+      response.header("Retry-After", Long.toString(e.retryAfterSeconds()));
+      response.body(new JSONObject().put("error", e.getMessage()).toString());
+    });
+
+    // Shutdown hooks run concurrently, so use one hook that stops taking
+    // requests, drains the writers, and only then takes the final
+    // snapshot and closes the pool
+    var finalSnapshots = snapshots;
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      stop();
+      awaitStop();
+      messageIngester.shutdown();
+      auditWriter.shutdown();
+      reapers.forEach(ExpiredTokenReaper::stop);
+      rateLimitFilter.shutdown();
+      if (finalSnapshots != null) {
+        finalSnapshots.stop();
+      }
+      shardPools.forEach(ConnectionPool::shutdown);
+      pool.shutdown();
+    }, "natter-shutdown"));
   }
   
   private static void createTables(Database database) 
       throws Exception {
-    var path = Paths.get(                                    
-        Main.class.getResource("/schema.sql").toURI());      
-    database.update(Files.readString(path));                 
+    database.update(readResource("/schema.sql"));
+  }
+
+  private static Database createTokenShard(int shard, String url,
+      String adminUrl, Metrics metrics, List<ConnectionPool> pools)
+      throws Exception {
+    if (adminUrl != null) {
+      try (var conn = DriverManager.getConnection(adminUrl,
+              System.getProperty("token.shards.admin.user", "natter"),
+              System.getProperty("token.shards.admin.password", "password"));
+           var statement = conn.createStatement()) {
+        statement.execute(readResource("/token-shard.sql"));
+      }
+    }
+    var pool = new ConnectionPool(url,
+        System.getProperty("token.shards.user", "natter_api_user"),
+        System.getProperty("token.shards.password", "password"),
+        Integer.getInteger("db.pool.size", 10),
+        Duration.ofMillis(Long.getLong("db.pool.acquire.millis", 30_000)),
+        Duration.ofSeconds(Long.getLong("db.pool.idle.seconds", 300)),
+        Integer.getInteger("db.statement.cache", 64),
+        metrics.histogram("natter_db_pool_wait_seconds",
+            Metrics.label("pool", "token-shard-" + shard)));
+    pools.add(pool);
+    return Database.forDataSource(TimedDataSource.wrap(pool, metrics));
+  }
+
+  private static String readResource(String name) throws IOException {
+    try (var in = Main.class.getResourceAsStream(name)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static ExpiredTokenReaper startReaper(DatabaseTokenStore tokenStore) {
+    var reaper = new ExpiredTokenReaper(tokenStore,
+        Integer.getInteger("token.reaper.batch", 1000),
+        Duration.ofMinutes(10), Duration.ofMillis(10));
+    reaper.start();
+    return reaper;
+  }
+
+  private static TokenStore cachedTokens(TokenStore tokenStore, Metrics metrics) {
+    var cachingTokenStore = new CachingTokenStore(tokenStore,
+        Long.getLong("token.cache.size", 10_000),
+        Duration.ofMinutes(10));
+    metrics.counter("natter_token_cache_hits_total",
+        "Token validations served from the token cache",
+        cachingTokenStore::hitCount);
+    metrics.counter("natter_token_cache_misses_total",
+        "Token validations that went to the database",
+        cachingTokenStore::missCount);
+    return cachingTokenStore;
+  }
+
+  private static Filter requireAdmin(Set<String> admins) {
+    return (request, response) -> {
+      if (!admins.contains(request.<String>attribute("subject"))) {
+        halt(403);
+      }
+    };
+  }
+
+  private static Set<String> userList(String names) {
+    return Arrays.stream(names.split(","))
+        .map(String::trim)
+        .filter(name -> !name.isEmpty())
+        .collect(Collectors.toUnmodifiableSet());
   }
 
   private static void badRequest(Exception ex, Request request, Response response) {
@@ -0,0 +1,157 @@
+package com.manning.apisecurityinaction;
+
+import spark.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static spark.Spark.*;
+
+/**
+ * Rate limits each client IP separately per route. It runs before
+ * authentication, so the limit also bounds how much credential checking
+ * a client can cause. Limits are read from properties of the
+ * form {@code limit.<METHOD> <path>=<permits per second>,<burst>}, where
+ * path segments starting with ':' match any value, plus
+ * {@code limit.default} for all other routes. Requests carrying Basic
+ * credentials are also limited per client IP by
+ * {@code limit.authenticate} before the password is checked.
+ */
+class RateLimitFilter implements Filter {
+    private final List<Route> routes;
+    private final TokenBuckets.Limit defaultLimit;
+    private final TokenBuckets.Limit authenticateLimit;
+    private final TokenBuckets buckets;
+    private final ScheduledExecutorService sweeper;
+    private final LongAdder rejections = new LongAdder();
+
+    RateLimitFilter(Properties properties) {
+        this.defaultLimit = parseLimit(
+                properties.getProperty("limit.default", "2.0,4"));
+        this.authenticateLimit = parseLimit(
+                properties.getProperty("limit.authenticate", "1.0,5"));
+        var routes = new ArrayList<Route>();
+        for (var name : properties.stringPropertyNames()) {
+            if (name.startsWith("limit.") && !name.equals("limit.default")
+                    && !name.equals("limit.authenticate")) {
+                routes.add(new Route(name.substring("limit.".length()),
+                        parseLimit(properties.getProperty(name))));
+            }
+        }
+        routes.sort(Comparator.comparingInt((Route r) -> r.literals).reversed());
+        this.routes = List.copyOf(routes);
+
+        var idleSeconds = Long.parseLong(
+                properties.getProperty("idle.seconds", "300"));
+        this.buckets = new TokenBuckets(
+                Integer.parseInt(properties.getProperty("shards", "16")),
+                TimeUnit.SECONDS.toNanos(idleSeconds),
+                Integer.parseInt(properties.getProperty("max.buckets", "100000")));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "rate-limit-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(buckets::evictIdle,
+                idleSeconds, idleSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        var route = match(request.requestMethod(), request.pathInfo());
+        var limit = route == null ? defaultLimit : route.limit;
+        var principal = "ip:" + request.ip();
+        var key = route == null ? principal : route.name + '|' + principal;
+        acquire(key, limit, response);
+    }
+
+    /**
+     * Limits Basic authentication attempts per client IP. This runs before
+     * authentication, so a flood of bad credentials is throttled before
+     * each one costs a password hash.
+     */
+    Filter preAuthentication() {
+        return (request, response) -> {
+            var authHeader = request.headers("Authorization");
+            if (authHeader != null && authHeader.startsWith("Basic ")) {
+                acquire("authenticate|ip:" + request.ip(), authenticateLimit, response);
+            }
+        };
+    }
+
+    private void acquire(String key, TokenBuckets.Limit limit, Response response) {
+        var waitNanos = buckets.tryAcquire(key, limit);
+        if (waitNanos > 0) {
+            rejections.increment();
+            var seconds = TimeUnit.NANOSECONDS.toSeconds(
+                    waitNanos + TimeUnit.SECONDS.toNanos(1) - 1);
+            response.header("Retry-After", Long.toString(seconds));
+            halt(429);
+        }
+    }
+
+    long rejectionCount() {
+        return rejections.sum();
+    }
+
+    int bucketCount() {
+        return buckets.size();
+    }
+
+    void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    private Route match(String method, String path) {
+        var segments = path.split("/");
+        for (var route : routes) {
+            if (route.matches(method, segments)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    private static TokenBuckets.Limit parseLimit(String value) {
+        var parts = value.split(",");
+        return new TokenBuckets.Limit(Double.parseDouble(parts[0].trim()),
+                parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+    }
+
+    private static class Route {
+        final String name;
+        final String method;
+        final String[] segments;
+        final int literals;
+        final TokenBuckets.Limit limit;
+
+        Route(String name, TokenBuckets.Limit limit) {
+            var parts = name.trim().split("\\s+", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("invalid route: " + name);
+            }
+            this.name = name;
+            this.method = parts[0];
+            this.segments = parts[1].split("/");
+            this.literals = (int) Arrays.stream(segments)
+                    .filter(s -> !s.startsWith(":")).count();
+            this.limit = limit;
+        }
+
+        boolean matches(String method, String[] path) {
+            if (!this.method.equals("*") && !this.method.equalsIgnoreCase(method)) {
+                return false;
+            }
+            if (path.length != segments.length) {
+                return false;
+            }
+            for (int i = 0; i < path.length; ++i) {
+                if (!segments[i].startsWith(":") && !segments[i].equals(path[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
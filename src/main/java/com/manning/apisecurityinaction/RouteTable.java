@@ -0,0 +1,91 @@
+package com.manning.apisecurityinaction;
+
+import spark.*;
+
+import java.util.*;
+
+/**
+ * Declares each route together with the filters it needs. On install,
+ * every route gets one precomputed filter chain (the common filters
+ * followed by its own) which runs inside the route itself, so requests
+ * that match no route, such as CORS preflights and 404s, never pay for
+ * authentication, token lookup or auditing. Static files are ordinary
+ * routes installed by {@link StaticAssets} outside the table, so they
+ * run no chain and set their own headers.
+ *
+ * <p>The chain records the declared route in the {@code route} request
+ * attribute and its start time in {@code request_start}.
+ */
+class RouteTable {
+    private final List<Filter> common;
+    private final List<Entry> entries = new ArrayList<>();
+
+    RouteTable(Filter... common) {
+        this.common = List.of(common);
+    }
+
+    RouteTable get(String path, Route handler, Filter... filters) {
+        return add("GET", path, handler, filters);
+    }
+
+    RouteTable post(String path, Route handler, Filter... filters) {
+        return add("POST", path, handler, filters);
+    }
+
+    RouteTable delete(String path, Route handler, Filter... filters) {
+        return add("DELETE", path, handler, filters);
+    }
+
+    void install() {
+        for (var entry : entries) {
+            var chain = new ArrayList<>(common);
+            chain.addAll(entry.filters);
+            var route = pipeline(entry.method + " " + entry.path,
+                    chain.toArray(new Filter[0]), entry.handler);
+            switch (entry.method) {
+                case "GET":
+                    Spark.get(entry.path, route);
+                    break;
+                case "POST":
+                    Spark.post(entry.path, route);
+                    break;
+                case "DELETE":
+                    Spark.delete(entry.path, route);
+                    break;
+                default:
+                    throw new IllegalStateException(entry.method);
+            }
+        }
+    }
+
+    private RouteTable add(String method, String path, Route handler,
+            Filter... filters) {
+        entries.add(new Entry(method, path, handler, List.of(filters)));
+        return this;
+    }
+
+    private static Route pipeline(String name, Filter[] chain, Route handler) {
+        return (request, response) -> {
+            request.attribute("request_start", System.nanoTime());
+            request.attribute("route", name);
+            for (var filter : chain) {
+                filter.handle(request, response);
+            }
+            return handler.handle(request, response);
+        };
+    }
+
+    private static class Entry {
+        final String method;
+        final String path;
+        final Route handler;
+        final List<Filter> filters;
+
+        Entry(String method, String path, Route handler, List<Filter> filters) {
+            this.method = method;
+            this.path = path;
+            this.handler = handler;
+            this.filters = filters;
+        }
+    }
+}
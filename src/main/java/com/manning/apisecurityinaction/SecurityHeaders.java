@@ -0,0 +1,55 @@
+package com.manning.apisecurityinaction;
+
+import spark.*;
+
+import javax.servlet.http.HttpServletResponse;
+
+public class SecurityHeaders {
+    private static final String[][] HEADERS = {
+        {"X-Content-Type-Options", "nosniff"},
+        {"X-Frame-Options", "DENY"},
+        {"X-XSS-Protection", "0"},
+        {"Server", ""},
+        {"Strict-Transport-Security", "max-age=30"} // "max-age=31536000"
+    };
+    private static final String API_POLICY =
+            "default-src 'none'; frame-ancestors 'none'; sandbox";
+    // The pages load their own scripts, use inline styles and call the API
+    private static final String PAGE_POLICY =
+            "default-src 'self'; style-src 'self' 'unsafe-inline'; " +
+            "frame-ancestors 'none'; form-action 'self'; base-uri 'none'";
+
+    /**
+     * Sets the standard API response headers. Headers are replaced rather
+     * than added, so routes that stream their body can apply them before
+     * the response is committed and the global afterAfter filter can
+     * safely apply them again. Responses default to JSON unless the route
+     * chose another content type.
+     */
+    public static void apply(Response response) {
+        var raw = response.raw();
+        if (raw.getContentType() == null) {
+            raw.setContentType("application/json;charset=utf-8");
+        }
+        setCommon(raw);
+        raw.setHeader("Cache-Control", "no-store");
+        raw.setHeader("Content-Security-Policy", API_POLICY);
+    }
+
+    /**
+     * Sets the headers for a static asset, which sets its own caching
+     * headers. HTML pages get a policy that lets them run; other assets
+     * get the API's locked-down one.
+     */
+    public static void applyToAsset(Response response, boolean page) {
+        var raw = response.raw();
+        setCommon(raw);
+        raw.setHeader("Content-Security-Policy", page ? PAGE_POLICY : API_POLICY);
+    }
+
+    private static void setCommon(HttpServletResponse raw) {
+        for (var header : HEADERS) {
+            raw.setHeader(header[0], header[1]);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.manning.apisecurityinaction;
+
+import com.manning.apisecurityinaction.token.Base64url;
+import spark.*;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Serves the files under a classpath directory from memory. Each file is
+ * read and gzipped once at startup, and gets a strong ETag derived from
+ * a SHA-256 hash of its content, so browsers can cache it and then
+ * revalidate with {@code If-None-Match} for a 304. Responses carry their
+ * own cache headers and are marked with the {@code static_asset}
+ * attribute so the API's {@code no-store} header and JSON defaults are
+ * not applied; they get the shared security headers from
+ * {@link SecurityHeaders#applyToAsset}.
+ */
+class StaticAssets {
+
+    private static class Asset {
+        final String contentType;
+        final byte[] identity;
+        final byte[] gzip;
+        final String etag;
+        final String gzipEtag;
+
+        Asset(String contentType, byte[] identity, byte[] gzip, String hash) {
+            this.contentType = contentType;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.etag = '"' + hash + '"';
+            this.gzipEtag = '"' + hash + "-gz\"";
+        }
+    }
+
+    private final Map<String, Asset> assets;
+    private final String cacheControl;
+
+    StaticAssets(String classpathDir, long maxAgeSeconds) throws IOException {
+        this.cacheControl = "public, max-age=" + maxAgeSeconds;
+        var assets = new HashMap<String, Asset>();
+        URI uri;
+        try {
+            uri = StaticAssets.class.getResource(classpathDir).toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        // Inside a jar the directory can only be walked through a zip file system
+        FileSystem jar = null;
+        if (uri.getScheme().equals("jar")) {
+            try {
+                jar = FileSystems.newFileSystem(uri, Map.of());
+            } catch (FileSystemAlreadyExistsException e) {
+                // Opened elsewhere, so Paths.get finds it and we leave it open
+            }
+        }
+        try (var files = Files.walk(Paths.get(uri))) {
+            var root = Paths.get(uri);
+            for (var file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                var path = "/" + root.relativize(file).toString()
+                        .replace(File.separatorChar, '/');
+                assets.put(path, load(file));
+            }
+        } finally {
+            if (jar != null) {
+                jar.close();
+            }
+        }
+        this.assets = Map.copyOf(assets);
+    }
+
+    static boolean isAsset(Request request) {
+        return request.attribute("static_asset") != null;
+    }
+
+    void install() {
+        for (var path : assets.keySet()) {
+            Spark.get(path, this::serve);
+        }
+    }
+
+    private Object serve(Request request, Response response) throws IOException {
+        var asset = assets.get(request.pathInfo());
+        request.attribute("static_asset", true);
+        var raw = response.raw();
+        var gzip = asset.gzip != null && acceptsGzip(request.headers("Accept-Encoding"));
+        var etag = gzip ? asset.gzipEtag : asset.etag;
+
+        raw.setHeader("ETag", etag);
+        raw.setHeader("Cache-Control", cacheControl);
+        raw.setHeader("Vary", "Accept-Encoding");
+        SecurityHeaders.applyToAsset(response,
+                asset.contentType.startsWith("text/html"));
+        if (matches(request.headers("If-None-Match"), etag)) {
+            response.status(304);
+            return "";
+        }
+
+        var body = gzip ? asset.gzip : asset.identity;
+        raw.setContentType(asset.contentType);
+        if (gzip) {
+            raw.setHeader("Content-Encoding", "gzip");
+        }
+        raw.setContentLength(body.length);
+        response.status(200);
+        raw.getOutputStream().write(body);
+        return "";
+    }
+
+    private static Asset load(Path file) throws IOException {
+        var identity = Files.readAllBytes(file);
+        var buffer = new ByteArrayOutputStream(identity.length);
+        try (var out = new GZIPOutputStream(buffer) {
+            { def.setLevel(Deflater.BEST_COMPRESSION); }
+        }) {
+            out.write(identity);
+        }
+        var gzip = buffer.toByteArray();
+        String hash;
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(identity);
+            hash = Base64url.encode(Arrays.copyOf(digest, 16));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Asset(contentType(file.getFileName().toString()), identity,
+                gzip.length < identity.length ? gzip : null, hash);
+    }
+
+    private static String contentType(String name) {
+        var dot = name.lastIndexOf('.');
+        switch (dot < 0 ? "" : name.substring(dot + 1)) {
+            case "html":
+                return "text/html;charset=utf-8";
+            case "js":
+                return "application/javascript;charset=utf-8";
+            case "css":
+                return "text/css;charset=utf-8";
+            case "json":
+                return "application/json;charset=utf-8";
+            case "svg":
+                return "image/svg+xml";
+            case "png":
+                return "image/png";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (var coding : acceptEncoding.split(",")) {
+            var parts = coding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            for (int i = 1; i < parts.length; ++i) {
+                var param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (var candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package com.manning.apisecurityinaction;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets keyed by an arbitrary string, spread over independent
+ * shards. Each bucket is a single AtomicLong holding its theoretical
+ * arrival time (GCRA), so acquiring a permit is one CAS with no locks.
+ * The number of buckets is capped: once a shard is full of active keys,
+ * new keys are refused until idle buckets can be dropped, so a client
+ * cycling through keys cannot grow the maps without bound.
+ */
+class TokenBuckets {
+
+    static class Limit {
+        final double permitsPerSecond;
+        final int burst;
+        final long intervalNanos;
+        final long toleranceNanos;
+
+        Limit(double permitsPerSecond, int burst) {
+            if (permitsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("invalid rate limit");
+            }
+            this.permitsPerSecond = permitsPerSecond;
+            this.burst = burst;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.toleranceNanos = intervalNanos * (burst - 1);
+        }
+    }
+
+    private final List<ConcurrentHashMap<String, AtomicLong>> shards;
+    private final long idleNanos;
+    private final int maxPerShard;
+
+    TokenBuckets(int shardCount, long idleNanos, int maxBuckets) {
+        var count = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+        var shards = new ArrayList<ConcurrentHashMap<String, AtomicLong>>(count);
+        for (int i = 0; i < count; ++i) {
+            shards.add(new ConcurrentHashMap<>());
+        }
+        this.shards = List.copyOf(shards);
+        this.idleNanos = idleNanos;
+        this.maxPerShard = Math.max(1, maxBuckets / count);
+    }
+
+    /**
+     * Takes a permit from the bucket for {@code key}. Returns 0 if one
+     * was available, otherwise how many nanoseconds until one will be.
+     */
+    long tryAcquire(String key, Limit limit) {
+        var shard = shard(key);
+        var bucket = shard.get(key);
+        if (bucket == null) {
+            if (shard.size() >= maxPerShard && evictIdle(shard) == 0) {
+                return limit.intervalNanos;
+            }
+            bucket = shard.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+        }
+        while (true) {
+            var now = System.nanoTime();
+            var tat = bucket.get();
+            var base = Math.max(tat, now);
+            var wait = base - limit.toleranceNanos - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(tat, base + limit.intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drops buckets that have been full for longer than the idle timeout.
+     */
+    int evictIdle() {
+        var evicted = 0;
+        for (var shard : shards) {
+            evicted += evictIdle(shard);
+        }
+        return evicted;
+    }
+
+    private int evictIdle(ConcurrentHashMap<String, AtomicLong> shard) {
+        var cutoff = System.nanoTime() - idleNanos;
+        var evicted = 0;
+        for (var it = shard.values().iterator(); it.hasNext(); ) {
+            if (it.next().get() - cutoff < 0) {
+                it.remove();
+                ++evicted;
+            }
+        }
+        return evicted;
+    }
+
+    int size() {
+        var size = 0;
+        for (var shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private ConcurrentHashMap<String, AtomicLong> shard(String key) {
+        var hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return shards.get(hash & (shards.size() - 1));
+    }
+}
@@ -1,47 +1,49 @@
 package com.manning.apisecurityinaction.controller;
  
+import com.manning.apisecurityinaction.SecurityHeaders;
 import org.dalesbred.*;
 import org.json.*;
 import spark.*;
  
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.*;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.*;
  
 public class AuditController {
  
+    private static final int EXPORT_FETCH_SIZE = 500;
+    private static final long DEFAULT_EXPORT_LIMIT = 100_000;
+    private static final long MAX_EXPORT_LIMIT = 1_000_000;
+
     private final Database database;
+    private final AuditWriter auditWriter;
     
-    public AuditController(Database database) {
+    public AuditController(Database database, AuditWriter auditWriter) {
         this.database = database;
+        this.auditWriter = auditWriter;
     }
  
     public void auditRequestStart(Request request, Response response) {
-        database.withVoidTransaction(tx -> {
-        var auditId = database.findUniqueLong(          
-            "SELECT NEXT VALUE FOR audit_id_seq");      
-        request.attribute("audit_id", auditId);         
-        database.updateUnique(
-            "INSERT INTO audit_log(audit_id, method, path, " +
-                "user_id, audit_time) " +
-                "VALUES(?, ?, ?, ?, current_timestamp)",
-            auditId, 
-            request.requestMethod(), 
+        var auditId = auditWriter.nextAuditId();
+        request.attribute("audit_id", auditId);
+        auditWriter.write(auditId,
+            request.requestMethod(),
             request.pathInfo(),
+            null,
             request.attribute("subject"));
-        });
     }
  
     public void auditRequestEnd(Request request, Response response) {
-        database.updateUnique(
-            "INSERT INTO audit_log(audit_id, method, path, status, " +
-            "user_id, audit_time) " +
-            "VALUES(?, ?, ?, ?, ?, current_timestamp)",
-        request.attribute("audit_id"),                
-        request.requestMethod(),
-        request.pathInfo(), 
-        response.status(),
-        request.attribute("subject"));
+        // Only requests that reached a route's filter chain were audited
+        if (request.attribute("audit_id") == null) return;
+        auditWriter.write(request.attribute("audit_id"),
+            request.requestMethod(),
+            request.pathInfo(),
+            response.status(),
+            request.attribute("subject"));
     }
 
 
@@ -53,6 +55,105 @@ public class AuditController {
         return new JSONArray(logs);                                       
     }
  
+    /**
+     * Streams audit records with audit_time in [from, to) as newline
+     * delimited JSON, ordered by audit_id. Pages always end on an audit_id
+     * boundary; if the limit was reached the final line is
+     * {@code {"next": <cursor>}}, to be passed back as {@code cursor}.
+     */
+    public String exportAuditLog(Request request, Response response)
+            throws IOException {
+        if (request.queryParams("from") == null) {
+            throw new IllegalArgumentException("from is required");
+        }
+        Instant from, to;
+        try {
+            from = Instant.parse(request.queryParams("from"));
+            to = request.queryParams("to") == null ? Instant.now()
+                    : Instant.parse(request.queryParams("to"));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("from and to must be ISO-8601 instants");
+        }
+        var cursor = request.queryParams("cursor") == null ? Long.MIN_VALUE
+                : Long.parseLong(request.queryParams("cursor"));
+        var limit = request.queryParams("limit") == null ? DEFAULT_EXPORT_LIMIT
+                : Long.parseLong(request.queryParams("limit"));
+        if (limit < 1 || limit > MAX_EXPORT_LIMIT) {
+            throw new IllegalArgumentException(
+                    "limit must be between 1 and " + MAX_EXPORT_LIMIT);
+        }
+
+        SecurityHeaders.apply(response);
+        response.raw().setContentType("application/x-ndjson;charset=utf-8");
+        response.status(200);
+        response.raw().flushBuffer();
+        var out = new BufferedWriter(new OutputStreamWriter(
+                response.raw().getOutputStream(), StandardCharsets.UTF_8));
+
+        database.withVoidTransaction(tx -> {
+            var conn = tx.getConnection();
+            // Audit ids increase with time, so bound the id scan using the
+            // covering (audit_time, audit_id) index instead of scanning
+            // every id from the cursor to the end of the table.
+            long minId, maxId;
+            try (var bounds = conn.prepareStatement(
+                    "SELECT MIN(audit_id), MAX(audit_id) FROM audit_log " +
+                    "WHERE audit_time >= ? AND audit_time < ?")) {
+                bounds.setTimestamp(1, Timestamp.from(from));
+                bounds.setTimestamp(2, Timestamp.from(to));
+                try (var rows = bounds.executeQuery()) {
+                    rows.next();
+                    minId = rows.getLong(1);
+                    if (rows.wasNull()) return;
+                    maxId = rows.getLong(2);
+                }
+            }
+
+            // Each audit id has at most a start and an end record, so
+            // limit + 2 rows is enough to finish the last id and see
+            // whether another follows. H2 materialises the whole result
+            // unless it is bounded here.
+            try (var stmt = conn.prepareStatement(
+                    "SELECT * FROM audit_log USE INDEX (audit_id_idx) " +
+                    "WHERE audit_id >= ? AND audit_id <= ? AND audit_id > ? " +
+                    "AND audit_time >= ? AND audit_time < ? " +
+                    "ORDER BY audit_id LIMIT ?",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                stmt.setFetchSize(EXPORT_FETCH_SIZE);
+                stmt.setLong(1, minId);
+                stmt.setLong(2, maxId);
+                stmt.setLong(3, cursor);
+                stmt.setTimestamp(4, Timestamp.from(from));
+                stmt.setTimestamp(5, Timestamp.from(to));
+                stmt.setLong(6, limit + 2);
+                try (var rows = stmt.executeQuery()) {
+                    long count = 0, lastId = 0;
+                    while (rows.next()) {
+                        var auditId = rows.getLong("audit_id");
+                        if (count >= limit && auditId != lastId) {
+                            writeLine(out, new JSONObject().put("next", lastId));
+                            break;
+                        }
+                        writeLine(out, recordToJson(rows));
+                        lastId = auditId;
+                        ++count;
+                    }
+                }
+            }
+        });
+        out.flush();
+        return "";
+    }
+
+    private static void writeLine(Writer out, JSONObject json) {
+        try {
+            json.write(out);
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+ 
     private static JSONObject recordToJson(ResultSet row) throws SQLException {                                         
         return new JSONObject()                                           
             .put("id", row.getLong("audit_id"))                       
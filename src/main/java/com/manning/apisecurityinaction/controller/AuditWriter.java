@@ -0,0 +1,229 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.slf4j.*;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+
+public class AuditWriter {
+    private static final Logger logger = LoggerFactory.getLogger(AuditWriter.class);
+
+    public enum Backpressure { BLOCK, DROP, SYNCHRONOUS }
+
+    private static final String INSERT_SQL =
+            "INSERT INTO audit_log(audit_id, method, path, status, " +
+            "user_id, audit_time) VALUES(?, ?, ?, ?, ?, ?)";
+    private static final long MAX_RETRY_DELAY_MILLIS = 5_000;
+
+    private final Database database;
+    private final IdAllocator auditIds;
+    private final BlockingQueue<List<Object>> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Backpressure backpressure;
+    private final LongAdder dropped = new LongAdder();
+    // Held shared around every insert, and exclusively to read the
+    // watermark, so no row below it is still uncommitted
+    private final ReadWriteLock inserting = new ReentrantReadWriteLock();
+    // Held shared while an event is queued; shutdown() stops accepting and
+    // then takes it exclusively, so no event is queued after the final drain
+    private final ReadWriteLock accepting = new ReentrantReadWriteLock();
+    private final Thread writer;
+    private volatile boolean running;
+
+    public AuditWriter(Database database, IdAllocator auditIds, int capacity,
+            int batchSize, long flushIntervalMillis, Backpressure backpressure) {
+        this.database = database;
+        this.auditIds = auditIds;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.backpressure = backpressure;
+        this.writer = new Thread(this::run, "audit-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        writer.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        accepting.writeLock().lock();
+        accepting.writeLock().unlock();
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        var batch = new ArrayList<List<Object>>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            if (!writeBatch(batch)) {
+                lost(batch);
+            }
+        }
+    }
+
+    public long nextAuditId() {
+        return auditIds.next();
+    }
+
+    public void write(Long auditId, String method, String path,
+            Integer status, String userId) {
+        // Cut to the column sizes, so a failed batch can only be a database
+        // problem and is worth retrying
+        var row = Arrays.<Object>asList(auditId, truncate(method, 10),
+                truncate(path, 100), status, truncate(userId, 30), Instant.now());
+        accepting.readLock().lock();
+        try {
+            if (running) {
+                enqueue(row);
+                return;
+            }
+        } finally {
+            accepting.readLock().unlock();
+        }
+        insert(row);
+    }
+
+    private void enqueue(List<Object> row) {
+        switch (backpressure) {
+            case BLOCK:
+                try {
+                    // Wait in steps, so a shutdown isn't held up by a full
+                    // queue the writer can't empty
+                    while (!queue.offer(row, flushIntervalMillis, TimeUnit.MILLISECONDS)) {
+                        if (!running) {
+                            insert(row);
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    insert(row);
+                }
+                break;
+            case DROP:
+                if (!queue.offer(row)) {
+                    dropped.increment();
+                }
+                break;
+            case SYNCHRONOUS:
+                if (!queue.offer(row)) {
+                    insert(row);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns a row id such that every audit row with a smaller one has
+     * committed. Rows inserted later always get larger row ids.
+     */
+    public long committedBelow() {
+        inserting.writeLock().lock();
+        try {
+            return database.findUniqueLong(
+                    "SELECT COALESCE(MAX(row_id), 0) + 1 FROM audit_log");
+        } finally {
+            inserting.writeLock().unlock();
+        }
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        var batch = new ArrayList<List<Object>>(batchSize);
+        var retryDelay = flushIntervalMillis;
+        while (running) {
+            try {
+                fill(batch);
+            } catch (InterruptedException e) {
+                // Shutting down: fall through and write what we have
+            }
+            if (batch.isEmpty() || writeBatch(batch)) {
+                retryDelay = flushIntervalMillis;
+                continue;
+            }
+            // Keep the failed batch and retry it; meanwhile new events wait
+            // in the queue and the backpressure policy applies once it fills
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                // Shutting down
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+        if (!batch.isEmpty() && !writeBatch(batch)) {
+            lost(batch);
+        }
+    }
+
+    private void fill(List<List<Object>> batch) throws InterruptedException {
+        if (batch.isEmpty()) {
+            var first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+            if (first == null) return;
+            batch.add(first);
+        }
+        var deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            var remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0) break;
+            var next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Writes and clears the batch, or leaves it unchanged if that fails.
+     */
+    private boolean writeBatch(List<List<Object>> batch) {
+        inserting.readLock().lock();
+        try {
+            database.updateBatch(INSERT_SQL, batch);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to write {} audit events, will retry",
+                    batch.size(), e);
+            return false;
+        } finally {
+            inserting.readLock().unlock();
+        }
+        batch.clear();
+        return true;
+    }
+
+    private void lost(List<List<Object>> batch) {
+        logger.error("Gave up writing {} audit events at shutdown", batch.size());
+        dropped.add(batch.size());
+        batch.clear();
+    }
+
+    private static String truncate(String value, int length) {
+        return value == null || value.length() <= length
+                ? value : value.substring(0, length);
+    }
+
+    private void insert(List<Object> row) {
+        inserting.readLock().lock();
+        try {
+            database.update(INSERT_SQL, row.toArray());
+        } finally {
+            inserting.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.google.common.cache.*;
+import com.google.common.hash.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+
+public class CredentialCache {
+
+    private final HashFunction keyedHash;
+    private final Cache<HashCode, Entry> cache;
+
+    public CredentialCache(long maximumSize, Duration ttl) {
+        var key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.keyedHash = Hashing.hmacSha256(key);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+    }
+
+    public boolean isVerified(String username, String password, String pwHash) {
+        var entry = cache.getIfPresent(key(username, password));
+        return entry != null && entry.username.equals(username)
+                && entry.pwHash.equals(pwHash);
+    }
+
+    public void verified(String username, String password, String pwHash) {
+        cache.put(key(username, password), new Entry(username, pwHash));
+    }
+
+    public void invalidate(String username) {
+        cache.asMap().values().removeIf(entry -> entry.username.equals(username));
+    }
+
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+
+    private HashCode key(String username, String password) {
+        return keyedHash.newHasher()
+                .putString(username, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(password, StandardCharsets.UTF_8)
+                .hash();
+    }
+
+    private static class Entry {
+        final String username;
+        final String pwHash;
+
+        Entry(String username, String pwHash) {
+            this.username = username;
+            this.pwHash = pwHash;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out ids from a sequence in blocks: the sequence steps by
+ * {@code blockSize}, so each {@code NEXT VALUE} reserves the ids from the
+ * value returned up to the next one, which are then allocated from memory
+ * with a single atomic increment. The next block is fetched in the
+ * background once three quarters of the current one has been used, so
+ * callers normally never wait on the database.
+ *
+ * <p>The sequence itself records where the next unused id starts, so a
+ * different block size on a later run can never hand out an id twice.
+ * Call {@link #prepareSequence} as an admin before creating an allocator.
+ */
+public class IdAllocator {
+
+    private static class Block {
+        final long end;
+        final long refillAt;
+        final AtomicLong next;
+
+        Block(long start, long end) {
+            this.end = end;
+            this.refillAt = start + (end - start) * 3 / 4;
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    private final Database database;
+    private final String sql;
+    private final int blockSize;
+    private final Executor refillExecutor;
+    private final AtomicReference<Block> current =
+            new AtomicReference<>(new Block(0, 0));
+    private final AtomicReference<CompletableFuture<Block>> refill =
+            new AtomicReference<>();
+
+    public IdAllocator(Database database, String sequence, int blockSize,
+            Executor refillExecutor) {
+        if (!sequence.matches("[a-z_]+")) {
+            throw new IllegalArgumentException("invalid sequence name");
+        }
+        this.database = database;
+        this.sql = "SELECT NEXT VALUE FOR " + sequence;
+        this.blockSize = blockSize;
+        this.refillExecutor = refillExecutor;
+    }
+
+    /**
+     * Sets the sequence to step by {@code blockSize}. H2 keeps the next
+     * value when the increment changes, and the value is also moved past
+     * any id already in the table, so no id is reused.
+     */
+    public static void prepareSequence(Database admin, String sequence,
+            String table, String column, int blockSize) {
+        for (var name : List.of(sequence, table, column)) {
+            if (!name.matches("[a-z_]+")) {
+                throw new IllegalArgumentException("invalid name: " + name);
+            }
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive");
+        }
+        var next = admin.findUniqueLong("SELECT GREATEST(CURRENT_VALUE + INCREMENT, " +
+                "(SELECT COALESCE(MAX(" + column + "), 0) + 1 FROM " + table + ")) " +
+                "FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?",
+                sequence.toUpperCase(Locale.ROOT));
+        admin.update("ALTER SEQUENCE " + sequence + " RESTART WITH " + next +
+                " INCREMENT BY " + blockSize);
+    }
+
+    public long next() {
+        while (true) {
+            var block = current.get();
+            var id = block.next.getAndIncrement();
+            if (id < block.end) {
+                if (id == block.refillAt) {
+                    refill();
+                }
+                return id;
+            }
+
+            var pending = refill();
+            Block fresh;
+            try {
+                fresh = pending.join();
+            } catch (CompletionException e) {
+                refill.compareAndSet(pending, null);
+                throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause() : e;
+            }
+            if (current.compareAndSet(block, fresh)) {
+                refill.compareAndSet(pending, null);
+            }
+        }
+    }
+
+    private CompletableFuture<Block> refill() {
+        while (true) {
+            var pending = refill.get();
+            if (pending != null) {
+                return pending;
+            }
+            var next = new CompletableFuture<Block>();
+            if (refill.compareAndSet(null, next)) {
+                refillExecutor.execute(() -> {
+                    try {
+                        var start = database.findUniqueLong(sql);
+                        next.complete(new Block(start, start + blockSize));
+                    } catch (Throwable e) {
+                        next.completeExceptionally(e);
+                    }
+                });
+                return next;
+            }
+        }
+    }
+}
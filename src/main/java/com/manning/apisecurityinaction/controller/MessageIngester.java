@@ -0,0 +1,244 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.slf4j.*;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Group-commits posted messages. Each space has its own queue, which is
+ * written as a single batch insert once it holds {@code maxBatch}
+ * messages or its oldest message has waited {@code maxDelayMillis},
+ * whichever comes first. Callers block until the batch holding their
+ * message has committed, so an acknowledged message is always durable.
+ * A caller that waits longer than the commit timeout gets a
+ * {@link CommitTimeoutException}; its message may still be written.
+ * <p>
+ * Batches for different spaces, and even for one space, commit in
+ * parallel, so a message can become visible before one with a smaller
+ * id. The ingester allocates the ids itself and tracks the ones still
+ * being written, so readers can stop at {@link #committedBelow()} and
+ * never page past a message that has yet to appear.
+ */
+public class MessageIngester {
+    private static final Logger logger = LoggerFactory.getLogger(MessageIngester.class);
+
+    public static class CommitTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CommitTimeoutException() {
+            super("timed out waiting for the message to be written");
+        }
+    }
+
+    private static final String INSERT_SQL =
+            "INSERT INTO messages(space_id, msg_id, msg_time, author, msg_text) " +
+            "VALUES(?, ?, ?, ?, ?)";
+
+    private static class Pending {
+        final long msgId;
+        final List<Object> row;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Pending(long msgId, List<Object> row) {
+            this.msgId = msgId;
+            this.row = row;
+        }
+    }
+
+    private static class SpaceQueue {
+        final long spaceId;
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicBoolean timerSet = new AtomicBoolean();
+
+        SpaceQueue(long spaceId) {
+            this.spaceId = spaceId;
+        }
+    }
+
+    private final Database database;
+    private final IdAllocator messageIds;
+    // Held shared while an id is allocated and registered, and exclusively
+    // to read the watermark, so no allocated id is missing from inFlight
+    private final ReadWriteLock allocation = new ReentrantReadWriteLock();
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private final AtomicLong highestAllocated;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final long commitTimeoutMillis;
+    private final ConcurrentHashMap<Long, SpaceQueue> spaces = new ConcurrentHashMap<>();
+    private final ExecutorService writers;
+    private final ScheduledExecutorService timer;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private volatile boolean running = true;
+
+    public MessageIngester(Database database, IdAllocator messageIds,
+            int writerThreads, int maxBatch, long maxDelayMillis,
+            long commitTimeoutMillis) {
+        this.database = database;
+        this.messageIds = messageIds;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        this.commitTimeoutMillis = commitTimeoutMillis;
+        // Every existing message has committed, and the sequence is
+        // already past them
+        this.highestAllocated = new AtomicLong(database.findUniqueLong(
+                "SELECT COALESCE(MAX(msg_id), 0) FROM messages"));
+        var counter = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            var thread = new Thread(runnable,
+                    "message-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "message-flush-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Allocates an id for a message, queues it and waits until it has been
+     * committed, then returns the id. The time is the one chosen when the
+     * message was accepted, so the stored row matches what the caller
+     * reports to clients.
+     */
+    public long post(long spaceId, Instant time, String author, String text) {
+        long msgId;
+        allocation.readLock().lock();
+        try {
+            msgId = messageIds.next();
+            inFlight.add(msgId);
+            highestAllocated.accumulateAndGet(msgId, Math::max);
+        } finally {
+            allocation.readLock().unlock();
+        }
+        var pending = new Pending(msgId, List.of(spaceId, msgId,
+                Timestamp.from(time), author, text));
+        if (!running) {
+            try {
+                database.update(INSERT_SQL, pending.row.toArray());
+            } finally {
+                inFlight.remove(msgId);
+            }
+            return msgId;
+        }
+
+        var space = spaces.computeIfAbsent(spaceId, SpaceQueue::new);
+        space.queue.add(pending);
+        try {
+            if (space.size.incrementAndGet() >= maxBatch) {
+                writers.execute(() -> flush(space));
+            } else if (space.timerSet.compareAndSet(false, true)) {
+                timer.schedule(() -> {
+                    space.timerSet.set(false);
+                    writers.execute(() -> flush(space));
+                }, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shutting down; flushed below
+        }
+        if (!running) {
+            // shutdown() may have drained the queues before we added to it
+            flush(space);
+        }
+
+        try {
+            pending.committed.get(commitTimeoutMillis, TimeUnit.MILLISECONDS);
+            return msgId;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause()
+                    : new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new CommitTimeoutException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommitTimeoutException();
+        }
+    }
+
+    /**
+     * Returns an id such that every message with a smaller id has either
+     * committed or failed. Ids allocated later are always larger.
+     */
+    public long committedBelow() {
+        allocation.writeLock().lock();
+        try {
+            var oldest = inFlight.ceiling(Long.MIN_VALUE);
+            return oldest != null ? oldest : highestAllocated.get() + 1;
+        } finally {
+            allocation.writeLock().unlock();
+        }
+    }
+
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    public long messageCount() {
+        return messages.sum();
+    }
+
+    public void shutdown() {
+        running = false;
+        timer.shutdownNow();
+        writers.shutdown();
+        try {
+            writers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spaces.values().forEach(this::flush);
+    }
+
+    private void flush(SpaceQueue space) {
+        var batch = new ArrayList<Pending>(maxBatch);
+        while (true) {
+            Pending next;
+            while (batch.size() < maxBatch && (next = space.queue.poll()) != null) {
+                space.size.decrementAndGet();
+                batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                // Posts that still hold this queue schedule their own
+                // flush of it, so it can safely leave the map
+                spaces.remove(space.spaceId, space);
+                return;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        var rows = new ArrayList<List<?>>(batch.size());
+        for (var pending : batch) {
+            rows.add(pending.row);
+        }
+        try {
+            database.updateBatch(INSERT_SQL, rows);
+        } catch (RuntimeException e) {
+            logger.error("Failed to write {} messages", batch.size(), e);
+            batch.forEach(pending -> {
+                inFlight.remove(pending.msgId);
+                pending.committed.completeExceptionally(e);
+            });
+            return;
+        }
+        batches.increment();
+        messages.add(batch.size());
+        batch.forEach(pending -> {
+            inFlight.remove(pending.msgId);
+            pending.committed.complete(null);
+        });
+    }
+}
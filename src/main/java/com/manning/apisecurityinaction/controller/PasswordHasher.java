@@ -0,0 +1,249 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.lambdaworks.crypto.SCryptUtil;
+import org.slf4j.*;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs scrypt hashing and verification on a dedicated, bounded pool so
+ * that a burst of logins cannot occupy every request thread. Work beyond
+ * the queue limit is rejected immediately with {@link OverloadedException},
+ * and a memory budget caps how many hashes may be in flight at once.
+ */
+public class PasswordHasher {
+    private static final Logger logger = LoggerFactory.getLogger(PasswordHasher.class);
+
+    public static class OverloadedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterSeconds;
+
+        OverloadedException(long retryAfterSeconds) {
+            super("password hashing capacity exceeded");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long retryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore memoryKiB;
+    private final int maxMemoryKiB;
+    private volatile long lastHashNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private final int n;
+    private final int r;
+    private final int p;
+
+    public PasswordHasher(int threads, int queueDepth, long maxMemoryBytes,
+            int n, int r, int p) {
+        this.n = n;
+        this.r = r;
+        this.p = p;
+        this.maxMemoryKiB = (int) Math.min(Integer.MAX_VALUE, maxMemoryBytes / 1024);
+        var perHash = permits(memoryCost(n, r, p));
+        // Threads beyond what the budget can run at once would only block
+        // on the semaphore, so run fewer rather than fail to start
+        if ((long) threads * perHash > maxMemoryKiB) {
+            var fits = Math.max(1, maxMemoryKiB / perHash);
+            logger.info("Reducing password hasher threads from {} to {} to fit {} MiB",
+                    threads, fits, maxMemoryKiB >> 10);
+            threads = fits;
+        }
+        this.memoryKiB = new Semaphore(maxMemoryKiB, true);
+        var counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth),
+                runnable -> {
+                    var thread = new Thread(runnable,
+                            "password-hasher-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public String hash(String password) {
+        return run(permits(memoryCost(n, r, p)), () -> SCryptUtil.scrypt(password, n, r, p));
+    }
+
+    /**
+     * Hashes in the background without waiting. If the pool is saturated
+     * the returned future fails with {@link OverloadedException}, so
+     * opportunistic work like rehashing is simply skipped.
+     */
+    public CompletableFuture<String> hashAsync(String password) {
+        var permits = permits(memoryCost(n, r, p));
+        var result = new CompletableFuture<String>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(withMemory(permits,
+                            () -> SCryptUtil.scrypt(password, n, r, p)));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new OverloadedException(retryAfterSeconds()));
+        }
+        return result;
+    }
+
+    /**
+     * True if the hash was made with weaker parameters than the current
+     * ones, or needs more memory than the budget allows. Other hashes
+     * made with stronger parameters are left alone, so a slower machine
+     * never downgrades them.
+     */
+    public boolean needsRehash(String hash) {
+        var params = params(hash);
+        return params[0] < n || params[1] < r || params[2] < p
+                || memoryCost(params[0], params[1], params[2]) > maxMemoryKiB * 1024L;
+    }
+
+    /**
+     * Picks the largest power-of-two N between minN and maxN for which a
+     * single hash with the given r and p stays within the latency budget
+     * on this machine, and needs at most maxMemoryBytes.
+     */
+    public static int calibrate(int r, int p, Duration budget, int minN, int maxN,
+            long maxMemoryBytes) {
+        if (memoryCost(minN, r, p) > maxMemoryBytes) {
+            throw new IllegalArgumentException("scrypt N=" + minN +
+                    " needs more than " + maxMemoryBytes + " bytes per hash");
+        }
+        var budgetNanos = budget.toNanos();
+        var n = minN;
+        SCryptUtil.scrypt("warm-up", minN, r, p);
+        while (n < maxN && memoryCost(n * 2, r, p) <= maxMemoryBytes) {
+            var nanos = timeHash(n, r, p);
+            logger.info("scrypt N={} r={} p={}: {} ms, {} MiB", n, r, p,
+                    TimeUnit.NANOSECONDS.toMillis(nanos),
+                    memoryCost(n, r, p) >> 20);
+            // Cost is linear in N, so doubling N doubles the time
+            if (nanos * 2 > budgetNanos) {
+                break;
+            }
+            n *= 2;
+        }
+        logger.info("Calibrated scrypt parameters N={} r={} p={}", n, r, p);
+        return n;
+    }
+
+    private static long timeHash(int n, int r, int p) {
+        var best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; ++i) {
+            var start = System.nanoTime();
+            SCryptUtil.scrypt("calibration", n, r, p);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Verifies a password. A stored hash that needs more than the whole
+     * budget still verifies, holding the entire budget while it runs, so
+     * lowering the budget never locks users out.
+     */
+    public boolean check(String password, String hash) {
+        var kib = Math.min(maxMemoryKiB, Math.max(1, (memoryCost(hash) + 1023) / 1024));
+        return run((int) kib, () -> SCryptUtil.check(password, hash));
+    }
+
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> T run(int permits, Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(() -> withMemory(permits, task));
+        } catch (RejectedExecutionException e) {
+            throw new OverloadedException(retryAfterSeconds());
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * A new hash that needs more than the whole budget is rejected rather
+     * than clamped, so the budget is never exceeded.
+     */
+    private int permits(long memoryBytes) {
+        var kib = Math.max(1, (memoryBytes + 1023) / 1024);
+        if (kib > maxMemoryKiB) {
+            throw new IllegalArgumentException(
+                    "scrypt cost exceeds the password hashing memory budget");
+        }
+        return (int) kib;
+    }
+
+    private <T> T withMemory(int permits, Callable<T> task) throws Exception {
+        memoryKiB.acquire(permits);
+        var start = System.nanoTime();
+        try {
+            return task.call();
+        } finally {
+            lastHashNanos = System.nanoTime() - start;
+            memoryKiB.release(permits);
+        }
+    }
+
+    private long retryAfterSeconds() {
+        var waiting = executor.getQueue().size() + executor.getActiveCount();
+        var nanos = waiting * lastHashNanos / executor.getMaximumPoolSize();
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(
+                nanos + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    static long memoryCost(int n, int r, int p) {
+        return 128L * r * n + 128L * r * p;
+    }
+
+    static long memoryCost(String hash) {
+        var params = params(hash);
+        return memoryCost(params[0], params[1], params[2]);
+    }
+
+    /**
+     * Parses N, r and p from an SCryptUtil hash of the form
+     * {@code $s0$<hex params>$salt$key}.
+     */
+    private static int[] params(String hash) {
+        var parts = hash.split("\\$");
+        if (parts.length != 5 || !parts[1].equals("s0")) {
+            throw new IllegalArgumentException("invalid hashed value");
+        }
+        var params = Long.parseLong(parts[2], 16);
+        return new int[] {
+                1 << (int) (params >> 16 & 0xffff),
+                (int) (params >> 8 & 0xff),
+                (int) (params & 0xff)
+        };
+    }
+}
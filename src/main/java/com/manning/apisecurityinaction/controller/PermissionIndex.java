@@ -0,0 +1,123 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory copy of the permissions table. Grants are held in an
+ * open-addressing hash table keyed by the primitive space id, each slot
+ * mapping user ids to a bitmask of their permissions. Space ids are
+ * allocated in blocks and need not be dense, so memory follows the
+ * number of spaces rather than the largest id. Readers never lock; only
+ * writers synchronize, to add slots and grow the table.
+ */
+public class PermissionIndex {
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int DELETE = 4;
+
+    /**
+     * A slot is in use once its value is set. The key is written first
+     * and the value published with a volatile write, so a reader that
+     * sees the value also sees the key. Slots are never removed.
+     */
+    private static class Table {
+        final long[] keys;
+        final AtomicReferenceArray<Map<String, Integer>> values;
+        final int mask;
+        int size;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        Map<String, Integer> get(long key) {
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                var value = values.get(i);
+                if (value == null) return null;
+                if (keys[i] == key) return value;
+            }
+        }
+
+        void put(long key, Map<String, Integer> value) {
+            var i = slot(key, mask);
+            while (values.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values.set(i, value);
+            ++size;
+        }
+
+        private static int slot(long key, int mask) {
+            var hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    private volatile Table spaces = new Table(1024);
+
+    public static PermissionIndex load(Database database) {
+        var index = new PermissionIndex();
+        database.executeQuery(rows -> {
+            while (rows.next()) {
+                index.grant(rows.getLong(1), rows.getString(2),
+                        rows.getString(3));
+            }
+            return null;
+        }, "SELECT space_id, user_id, perms FROM permissions");
+        return index;
+    }
+
+    public static int mask(String perms) {
+        var mask = 0;
+        for (int i = 0; i < perms.length(); ++i) {
+            switch (perms.charAt(i)) {
+                case 'r': mask |= READ; break;
+                case 'w': mask |= WRITE; break;
+                case 'd': mask |= DELETE; break;
+                default:
+                    throw new IllegalArgumentException("invalid permissions");
+            }
+        }
+        return mask;
+    }
+
+    public int permissions(long spaceId, String username) {
+        var users = spaces.get(spaceId);
+        if (users == null) {
+            return 0;
+        }
+        return users.getOrDefault(username, 0);
+    }
+
+    public boolean hasPermission(long spaceId, String username, int required) {
+        return (permissions(spaceId, username) & required) == required;
+    }
+
+    public synchronized void grant(long spaceId, String username, String perms) {
+        var mask = mask(perms);
+        var spaces = this.spaces;
+        var users = spaces.get(spaceId);
+        if (users == null) {
+            if (spaces.size + 1 > spaces.keys.length / 2) {
+                var grown = new Table(spaces.keys.length * 2);
+                for (int i = 0; i < spaces.keys.length; ++i) {
+                    var value = spaces.values.get(i);
+                    if (value != null) {
+                        grown.put(spaces.keys[i], value);
+                    }
+                }
+                this.spaces = spaces = grown;
+            }
+            users = new ConcurrentHashMap<>();
+            spaces.put(spaceId, users);
+        }
+        users.put(username, mask);
+    }
+}
@@ -1,15 +1,41 @@
 package com.manning.apisecurityinaction.controller;
+import com.manning.apisecurityinaction.SecurityHeaders;
+import com.manning.apisecurityinaction.json.*;
+import com.manning.apisecurityinaction.token.Base64url;
 import org.dalesbred.Database;
+import org.dalesbred.DatabaseException;
 import org.json.*;
-import java.sql.SQLException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
 import spark.*;
 public class SpaceController {
   private final Database database;
-  public SpaceController(Database database) {
+  private final PermissionIndex permissionIndex;
+  private final IdAllocator spaceIds;
+  private final MessageIngester messageIngester;
+  private final SpaceEvents spaceEvents;
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final int MAX_PAGE_SIZE = 1000;
+  private static final int MAX_MEMBER_BATCH = 1000;
+  private static final int MAX_MEMBER_RETRIES = 3;
+
+  public SpaceController(Database database, PermissionIndex permissionIndex,
+      IdAllocator spaceIds,
+      MessageIngester messageIngester, SpaceEvents spaceEvents) {
     this.database = database;
+    this.permissionIndex = permissionIndex;
+    this.spaceIds = spaceIds;
+    this.messageIngester = messageIngester;
+    this.spaceEvents = spaceEvents;
   }
-  public JSONObject createSpace(Request request, Response response) throws SQLException {
-    var json = new JSONObject(request.body());             
+  public String createSpace(Request request, Response response)
+      throws SQLException, IOException {
+    var json = JsonFields.read(request, "name", "owner");
     var spaceName = json.getString("name");
     if (spaceName.length() > 255) {                                     
       throw new IllegalArgumentException("space name too long");
@@ -26,29 +52,30 @@ public class SpaceController {
       throw new IllegalArgumentException("invalid username");
     }
 
-    return database.withTransaction(tx -> {                
-      var spaceId = database.findUniqueLong(               
-          "SELECT NEXT VALUE FOR space_id_seq;");          
+    var spaceId = spaceIds.next();
+    database.withVoidTransaction(tx -> {                
       database.updateUnique(
           "INSERT INTO spaces(space_id, name, owner) " +
               "VALUES(?, ? , ?);", spaceId, spaceName, owner);
       database.updateUnique(                                      
           "INSERT INTO permissions(space_id, user_id, perms) " +  
               "VALUES(?, ?, ?)", spaceId, owner, "rwd");
+    });
+    permissionIndex.grant(spaceId, owner, "rwd");
 
-      response.status(201);                                
-      response.header("Location", "/spaces/" + spaceId);   
-      return new JSONObject()
-          .put("name", spaceName)
-          .put("uri", "/spaces/" + spaceId);
-    });  
+    response.header("Location", "/spaces/" + spaceId);   
+    return JsonOutput.respond(response, 201,
+        "name", spaceName,
+        "uri", "/spaces/" + spaceId);
   }
 
 
     // Additional REST API endpoints not covered in the book:
-  public JSONObject postMessage(Request request, Response response) {
+  public String postMessage(Request request, Response response)
+      throws IOException {
     var spaceId = Long.parseLong(request.params(":spaceId"));
-    var json = new JSONObject(request.body());
+    var json = JsonFields.read(request,
+        "author", "message");
     var user = json.getString("author");
     if (!user.equals(request.attribute("subject"))) {
       throw new IllegalArgumentException("author must match authenticated user");
@@ -58,26 +85,136 @@ public class SpaceController {
       throw new IllegalArgumentException("message is too long");
     }
 
-    return database.withTransaction(tx -> {
-      var msgId = database.findUniqueLong(
-          "SELECT NEXT VALUE FOR msg_id_seq;");
-      database.updateUnique(
-          "INSERT INTO messages(space_id, msg_id, msg_time," +
-              "author, msg_text) " +
-              "VALUES(?, ?, current_timestamp, ?, ?)",
-          spaceId, msgId, user, message);
-
-      response.status(201);
-      var uri = "/spaces/" + spaceId + "/messages/" + msgId;
-      response.header("Location", uri);
-      return new JSONObject().put("uri", uri);
-    });
+    var time = Instant.now();
+    var msgId = messageIngester.post(spaceId, time, user, message);
+
+    var uri = "/spaces/" + spaceId + "/messages/" + msgId;
+    var event = new LinkedHashMap<String, String>();
+    event.put("uri", uri);
+    event.put("author", user);
+    var timestamp = time.toString();
+    event.put("time", timestamp);
+    event.put("message", message);
+    spaceEvents.publish(spaceId, JsonOutput.toString(event));
+
+    response.header("Location", uri);
+    return JsonOutput.respond(response, 201, "uri", uri, "time", timestamp);
+  }
+
+
+  public JSONObject readMessage(Request request, Response response) {
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    var msgId = Long.parseLong(request.params(":msgId"));
+
+    return database.findUnique(row -> messageToJson(spaceId, row),
+        "SELECT msg_id, author, msg_time, msg_text FROM messages " +
+            "WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+  }
+
+  /**
+   * Streams one page of messages in msg_id order, which is the order they
+   * were accepted in. The first page starts at the first message at or
+   * after the optional {@code since} timestamp (default: one day ago);
+   * later pages pass back the {@code next} cursor from the previous page,
+   * which resumes strictly after the last message returned. A page never
+   * goes past a message that is still being written, so a message that
+   * commits late is not skipped by a cursor already handed out.
+   */
+  public String findMessages(Request request, Response response)
+      throws IOException {
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    var since = Instant.now().minus(1, ChronoUnit.DAYS);
+    Long afterId = null;
+    try {
+      if (request.queryParams("since") != null) {
+        since = Instant.parse(request.queryParams("since"));
+      }
+      var cursor = request.queryParams("cursor");
+      if (cursor != null) {
+        afterId = Long.parseLong(new String(Base64url.decode(cursor),
+            StandardCharsets.UTF_8));
+      }
+    } catch (DateTimeParseException | IllegalArgumentException e) {
+      throw new IllegalArgumentException("invalid since or cursor");
+    }
+    var limit = DEFAULT_PAGE_SIZE;
+    if (request.queryParams("limit") != null) {
+      limit = Integer.parseInt(request.queryParams("limit"));
+      if (limit < 1 || limit > MAX_PAGE_SIZE) {
+        throw new IllegalArgumentException("limit must be 1-" + MAX_PAGE_SIZE);
+      }
+    }
+
+    SecurityHeaders.apply(response);
+    response.status(200);
+    var out = new BufferedWriter(new OutputStreamWriter(
+        response.raw().getOutputStream(), StandardCharsets.UTF_8));
+    var json = new JSONWriter(out);
+    json.object().key("messages").array();
+
+    // Read before the page, so later ids are excluded even if they commit
+    var committedBelow = messageIngester.committedBelow();
+    if (afterId == null) {
+      afterId = database.findOptional(Long.class,
+          "SELECT msg_id FROM messages USE INDEX (msg_space_time_idx) " +
+              "WHERE space_id = ? AND msg_time >= ? " +
+              "ORDER BY space_id, msg_time, msg_id LIMIT 1", spaceId, since)
+          .map(id -> id - 1).orElse(Long.MAX_VALUE);
+    }
+
+    var pageSize = limit;
+    var next = database.executeQuery(rows -> {
+      String cursor = null;
+      for (int count = 0; rows.next(); ++count) {
+        if (count == pageSize) {
+          return cursor;
+        }
+        var msgId = rows.getLong(1);
+        var time = rows.getTimestamp(3).toInstant();
+        json.object()
+            .key("uri").value("/spaces/" + spaceId + "/messages/" + msgId)
+            .key("author").value(rows.getString(2))
+            .key("time").value(time.toString())
+            .key("message").value(rows.getString(4))
+            .endObject();
+        cursor = Base64url.encode(Long.toString(msgId)
+            .getBytes(StandardCharsets.UTF_8));
+      }
+      return null;
+    }, "SELECT msg_id, author, msg_time, msg_text FROM messages " +
+        "USE INDEX (msg_space_id_idx) " +
+        "WHERE space_id = ? AND msg_id > ? AND msg_id < ? " +
+        "ORDER BY space_id, msg_id LIMIT ?",
+        spaceId, afterId, committedBelow, limit + 1);
+
+    json.endArray();
+    if (next != null) {
+      json.key("next").value(next);
+    }
+    json.endObject();
+    out.flush();
+    return "";
   }
 
+  private static JSONObject messageToJson(long spaceId, ResultSet row)
+      throws SQLException {
+    return new JSONObject()
+        .put("uri", "/spaces/" + spaceId + "/messages/" + row.getLong(1))
+        .put("author", row.getString(2))
+        .put("time", row.getTimestamp(3).toInstant())
+        .put("message", row.getString(4));
+  }
 
   public JSONObject addMember(Request request, Response response) {
-    var json = new JSONObject(request.body());
+    var body = new JSONTokener(request.body()).nextValue();
     var spaceId = Long.parseLong(request.params(":spaceId"));
+    if (body instanceof JSONArray) {
+      return addMembers(spaceId, (JSONArray) body, response);
+    }
+    if (!(body instanceof JSONObject)) {
+      throw new IllegalArgumentException("expected an object or array");
+    }
+    var json = (JSONObject) body;
     var userToAdd = json.getString("username");
     var perms = json.getString("permissions");
  
@@ -88,10 +225,137 @@ public class SpaceController {
     database.updateUnique(                                        
         "INSERT INTO permissions(space_id, user_id, perms) " +
             "VALUES(?, ?, ?);", spaceId, userToAdd, perms);
+    permissionIndex.grant(spaceId, userToAdd, perms);
  
     response.status(200);
     return new JSONObject()
         .put("username", userToAdd)
         .put("permissions", perms);
   }
+
+  /**
+   * Adds a JSON array of {@code {username, permissions}} entries in one
+   * transaction with a single batch insert. Each entry gets its own
+   * result, in request order, so one bad entry does not fail the rest.
+   */
+  private JSONObject addMembers(long spaceId, JSONArray entries,
+      Response response) {
+    if (entries.length() > MAX_MEMBER_BATCH) {
+      throw new IllegalArgumentException(
+          "at most " + MAX_MEMBER_BATCH + " members per request");
+    }
+
+    var results = new JSONObject[entries.length()];
+    var pending = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < entries.length(); ++i) {
+      var entry = entries.optJSONObject(i);
+      if (entry == null) {
+        results[i] = memberError(null, "entry must be an object");
+        continue;
+      }
+      var username = entry.optString("username", null);
+      var perms = entry.optString("permissions", null);
+      if (username == null || !username.matches(UserController.USERNAME_PATTERN)) {
+        results[i] = memberError(username, "invalid username");
+      } else if (perms == null || !perms.matches("r?w?d?")) {
+        results[i] = memberError(username, "invalid permissions");
+      } else if (pending.putIfAbsent(username, i) != null) {
+        results[i] = memberError(username, "duplicate username");
+      } else {
+        results[i] = new JSONObject()
+            .put("username", username)
+            .put("permissions", perms);
+      }
+    }
+
+    if (!pending.isEmpty()) {
+      var errors = insertMembers(spaceId, pending, results);
+      pending.forEach((username, index) -> {
+        var error = errors.get(username);
+        if (error != null) {
+          results[index] = memberError(username, error);
+        } else {
+          permissionIndex.grant(spaceId, username,
+              results[index].getString("permissions"));
+        }
+      });
+    }
+
+    response.status(200);
+    return new JSONObject().put("results", new JSONArray(results));
+  }
+
+  /**
+   * Inserts the pending members that are known users and not already in
+   * the space, and returns the error for each one that was skipped.
+   * A concurrent request may add the same member between the check and
+   * the insert. Its key violation rolls the batch back, and the retry
+   * then sees the row and reports "already a member".
+   */
+  private Map<String, String> insertMembers(long spaceId,
+      Map<String, Integer> pending, JSONObject[] results) {
+    for (int attempt = 1; ; ++attempt) {
+      try {
+        return tryInsertMembers(spaceId, pending, results);
+      } catch (DatabaseException e) {
+        if (attempt == MAX_MEMBER_RETRIES || !isDuplicateKey(e)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private Map<String, String> tryInsertMembers(long spaceId,
+      Map<String, Integer> pending, JSONObject[] results) {
+    return database.withTransaction(tx -> {
+      var usernames = new ArrayList<>(pending.keySet());
+      var in = String.join(",", Collections.nCopies(usernames.size(), "?"));
+      var known = new HashSet<>(database.findAll(String.class,
+          "SELECT user_id FROM users WHERE user_id IN (" + in + ")",
+          usernames.toArray()));
+      var args = new ArrayList<Object>(usernames.size() + 1);
+      args.add(spaceId);
+      args.addAll(usernames);
+      var existing = new HashSet<>(database.findAll(String.class,
+          "SELECT user_id FROM permissions " +
+              "WHERE space_id = ? AND user_id IN (" + in + ")",
+          args.toArray()));
+
+      var errors = new HashMap<String, String>();
+      var batch = new ArrayList<List<?>>();
+      for (var username : usernames) {
+        if (!known.contains(username)) {
+          errors.put(username, "no such user");
+        } else if (existing.contains(username)) {
+          errors.put(username, "already a member");
+        } else {
+          var perms = results[pending.get(username)].getString("permissions");
+          batch.add(List.of(spaceId, username, perms));
+        }
+      }
+      if (!batch.isEmpty()) {
+        database.updateBatch("INSERT INTO permissions(space_id, user_id, perms) " +
+            "VALUES(?, ?, ?)", batch);
+      }
+      return errors;
+    });
+  }
+
+  private static boolean isDuplicateKey(DatabaseException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException
+          && "23505".equals(((SQLException) cause).getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static JSONObject memberError(String username, String error) {
+    var result = new JSONObject().put("error", error);
+    if (username != null) {
+      result.put("username", username);
+    }
+    return result;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,268 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.manning.apisecurityinaction.SecurityHeaders;
+import spark.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static spark.Spark.halt;
+
+/**
+ * Pushes new messages to subscribers as Server-Sent Events. Each space
+ * keeps a ring buffer of its most recent messages, numbered from 1, and
+ * every published message is offered to each subscriber's bounded queue
+ * without touching the database. A subscriber whose queue fills up is
+ * evicted rather than slowing down publishers; it can reconnect with
+ * {@code Last-Event-ID} and resume from the ring buffer.
+ * <p>
+ * Only spaces with subscribers have a channel. Once a channel has had no
+ * subscribers for the idle timeout it is dropped along with its buffer.
+ * Event ids start from a clock-based value for each new channel, so ids
+ * from an older channel or before a restart are never reused. Every
+ * subscriber holds a server thread for the life of its stream, so the
+ * subscriber limit must leave threads for ordinary requests.
+ */
+public class SpaceEvents {
+
+    private static class Event {
+        final long id;
+        final String data;
+
+        Event(long id, String data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private static class Subscriber {
+        final BlockingQueue<Event> queue;
+        volatile boolean evicted;
+
+        Subscriber(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    private static class Channel {
+        final Event[] ring;
+        final Set<Subscriber> subscribers = new LinkedHashSet<>();
+        final long firstId;
+        long lastId;
+        long idleSince;
+        boolean closed;
+
+        Channel(int capacity, long firstId) {
+            this.ring = new Event[capacity];
+            this.firstId = firstId;
+            this.lastId = firstId - 1;
+        }
+
+        void publish(String data) {
+            var event = new Event(++lastId, data);
+            ring[(int) (event.id % ring.length)] = event;
+            for (var it = subscribers.iterator(); it.hasNext(); ) {
+                var subscriber = it.next();
+                if (!subscriber.queue.offer(event)) {
+                    subscriber.evicted = true;
+                    it.remove();
+                }
+            }
+        }
+
+        List<Event> since(long id) {
+            var events = new ArrayList<Event>();
+            for (var next = Math.max(Math.max(id + 1, firstId), lastId - ring.length + 1);
+                    next <= lastId; ++next) {
+                events.add(ring[(int) (next % ring.length)]);
+            }
+            return events;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Channel> channels = new ConcurrentHashMap<>();
+    private final int ringSize;
+    private final int queueSize;
+    private final int maxSubscribers;
+    private final int maxPerSpace;
+    private final long maxStreamMillis;
+    private final long idleMillis;
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final LongAdder evictions = new LongAdder();
+
+    public SpaceEvents(int ringSize, int queueSize, int maxSubscribers,
+            int maxPerSpace, long maxStreamMillis, long idleMillis) {
+        this.ringSize = ringSize;
+        this.queueSize = queueSize;
+        this.maxSubscribers = maxSubscribers;
+        this.maxPerSpace = maxPerSpace;
+        this.maxStreamMillis = maxStreamMillis;
+        this.idleMillis = idleMillis;
+        var sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "space-events-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var period = Math.max(1, idleMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::dropIdleChannels, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void publish(long spaceId, String data) {
+        var channel = channels.get(spaceId);
+        if (channel == null) return;
+        synchronized (channel) {
+            if (!channel.closed) {
+                channel.publish(data);
+            }
+        }
+    }
+
+    /**
+     * Streams events until the client disconnects, is evicted, or the
+     * stream reaches its maximum age. Closing long-lived streams makes
+     * clients reconnect through authentication and the permission check,
+     * so revoked tokens and permissions take effect.
+     */
+    public String stream(Request request, Response response) throws IOException {
+        var spaceId = Long.parseLong(request.params(":spaceId"));
+        var lastEventId = 0L;
+        var header = request.headers("Last-Event-ID");
+        if (header != null) {
+            try {
+                lastEventId = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid Last-Event-ID");
+            }
+        }
+
+        if (subscribers.incrementAndGet() > maxSubscribers) {
+            subscribers.decrementAndGet();
+            response.header("Retry-After", "5");
+            halt(503);
+        }
+        try {
+            var subscriber = new Subscriber(queueSize);
+            Channel channel;
+            List<Event> backlog;
+            while (true) {
+                channel = channels.computeIfAbsent(spaceId,
+                        id -> new Channel(ringSize, System.currentTimeMillis() * 1000));
+                synchronized (channel) {
+                    // Dropped by the sweeper after we looked it up
+                    if (!channel.closed) break;
+                }
+            }
+            synchronized (channel) {
+                if (channel.subscribers.size() >= maxPerSpace) {
+                    response.header("Retry-After", "5");
+                    halt(503);
+                }
+                // An id from before a restart: replay all we have
+                if (lastEventId > channel.lastId) {
+                    lastEventId = 0;
+                }
+                backlog = channel.since(lastEventId);
+                channel.subscribers.add(subscriber);
+            }
+            try {
+                send(subscriber, backlog, response);
+            } finally {
+                synchronized (channel) {
+                    channel.subscribers.remove(subscriber);
+                }
+            }
+        } finally {
+            subscribers.decrementAndGet();
+        }
+        return "";
+    }
+
+    public int subscriberCount() {
+        return subscribers.get();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private void send(Subscriber subscriber, List<Event> backlog,
+            Response response) throws IOException {
+        response.type("text/event-stream");
+        SecurityHeaders.apply(response);
+        response.status(200);
+        var raw = response.raw();
+        var out = new BufferedWriter(new OutputStreamWriter(
+                raw.getOutputStream(), StandardCharsets.UTF_8));
+        out.write("retry: 5000\n\n");
+        for (var event : backlog) {
+            write(out, event);
+        }
+        out.flush();
+        raw.flushBuffer();
+
+        var deadline = System.currentTimeMillis() + maxStreamMillis;
+        try {
+            while (!subscriber.evicted) {
+                var remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                var event = subscriber.queue.poll(
+                        Math.min(remaining, 15_000), TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    // Keep-alive comment, also detects dead connections
+                    out.write(":\n\n");
+                } else {
+                    do {
+                        write(out, event);
+                    } while ((event = subscriber.queue.poll()) != null);
+                }
+                out.flush();
+                raw.flushBuffer();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Client went away
+        }
+        if (subscriber.evicted) {
+            evictions.increment();
+        }
+    }
+
+    private static void write(Writer out, Event event) throws IOException {
+        out.write("id: ");
+        out.write(Long.toString(event.id));
+        out.write("\nevent: message\ndata: ");
+        out.write(event.data);
+        out.write("\n\n");
+    }
+
+    public int channelCount() {
+        return channels.size();
+    }
+
+    /**
+     * Drops channels that have had no subscribers for the idle timeout.
+     * A channel is closed under its lock, so a subscriber that looked it
+     * up concurrently sees that and creates a fresh one.
+     */
+    private void dropIdleChannels() {
+        var now = System.currentTimeMillis();
+        for (var entry : channels.entrySet()) {
+            var channel = entry.getValue();
+            synchronized (channel) {
+                if (!channel.subscribers.isEmpty()) {
+                    channel.idleSince = 0;
+                } else if (channel.idleSince == 0) {
+                    channel.idleSince = now;
+                } else if (now - channel.idleSince >= idleMillis) {
+                    channel.closed = true;
+                    channels.remove(entry.getKey(), channel);
+                }
+            }
+        }
+    }
+}
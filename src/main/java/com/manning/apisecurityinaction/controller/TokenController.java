@@ -3,38 +3,41 @@ package com.manning.apisecurityinaction.controller;
 import java.time.temporal.ChronoUnit;
  
 import org.json.JSONObject;
+import com.manning.apisecurityinaction.json.JsonOutput;
 import com.manning.apisecurityinaction.token.TokenStore;
+import java.io.IOException;
 import spark.*;
  
 import static java.time.Instant.now;
  
 public class TokenController {
  
+    private static final String BEARER = "Bearer ";
+
     private final TokenStore tokenStore;                            
  
     public TokenController(TokenStore tokenStore) {                 
         this.tokenStore = tokenStore;                               
     }
  
-    public JSONObject login(Request request, Response response) {
+    public String login(Request request, Response response)
+            throws IOException {
         String subject = request.attribute("subject");              
         var expiry = now().plus(10, ChronoUnit.MINUTES);            
  
         var token = new TokenStore.Token(expiry, subject);          
         var tokenId = tokenStore.create(request, token);            
  
-        response.status(201);
-        return new JSONObject()                                     
-                .put("token", tokenId);                             
+        return JsonOutput.respond(response, 201, "token", tokenId);
     }
 
     public void validateToken(Request request, Response response) {
-        var tokenId = request.headers("Authorization");
+        var header = request.headers("Authorization");
         // var tokenId = request.headers("X-CSRF-Token");              
-        if (tokenId == null || !tokenId.startsWith("Bearer")) return;                                
-        tokenId = tokenId.substring(7);
+        if (header == null || !header.startsWith(BEARER)) return;                                
     
-        tokenStore.read(request, tokenId).ifPresent(token -> {      
+        tokenStore.read(request, header, BEARER.length(),
+                header.length() - BEARER.length()).ifPresent(token -> {      
             if (now().isBefore(token.expiry)) {
                 request.attribute("subject", token.username);
                 token.attributes.forEach(request::attribute);
@@ -49,13 +52,13 @@ public class TokenController {
 
     public JSONObject logout(Request request, Response response) {
         // var tokenId = request.headers("X-CSRF-Token");
-        var tokenId = request.headers("Authorization");                 
-        if (tokenId == null || !tokenId.startsWith("Bearer")) {
+        var header = request.headers("Authorization");                 
+        if (header == null || !header.startsWith(BEARER)) {
             throw new IllegalArgumentException("missing token header");
         }
-        tokenId = tokenId.substring(7);
     
-        tokenStore.revoke(request, tokenId);                            
+        tokenStore.revoke(request, header, BEARER.length(),
+                header.length() - BEARER.length());                            
     
         response.status(200);                                           
         return new JSONObject();                                        
@@ -1,28 +1,40 @@
 package com.manning.apisecurityinaction.controller;
  
-import com.lambdaworks.crypto.*;
+import com.manning.apisecurityinaction.json.*;
 import org.dalesbred.*;
 import org.json.*;
+import org.slf4j.*;
 import spark.*;
  
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.CompletionException;
  
 import static spark.Spark.*;
  
 public class UserController {
-  private static final String USERNAME_PATTERN =
+  private static final Logger logger = LoggerFactory.getLogger(UserController.class);
+
+  static final String USERNAME_PATTERN =
       "[a-zA-Z][a-zA-Z0-9]{1,29}";
  
   private final Database database;
+  private final CredentialCache credentialCache;
+  private final PermissionIndex permissionIndex;
+  private final PasswordHasher passwordHasher;
  
-  public UserController(Database database) {
+  public UserController(Database database, CredentialCache credentialCache,
+      PermissionIndex permissionIndex, PasswordHasher passwordHasher) {
     this.database = database;
+    this.credentialCache = credentialCache;
+    this.permissionIndex = permissionIndex;
+    this.passwordHasher = passwordHasher;
   }
  
-  public JSONObject registerUser(Request request,
+  public String registerUser(Request request,
       Response response) throws Exception {
-    var json = new JSONObject(request.body());
+    var json = JsonFields.read(request,
+        "username", "password");
     var username = json.getString("username");
     var password = json.getString("password");
  
@@ -34,14 +46,13 @@ public class UserController {
           "password must be at least 8 characters");
     }
  
-    var hash = SCryptUtil.scrypt(password, 32768, 8, 1);      
+    var hash = passwordHasher.hash(password);      
     database.updateUnique(                                    
         "INSERT INTO users(user_id, pw_hash)" +
         " VALUES(?, ?)", username, hash);
  
-    response.status(201);
     response.header("Location", "/users/" + username);
-    return new JSONObject().put("username", username);
+    return JsonOutput.respond(response, 201, "username", username);
   }
 
 
@@ -70,12 +81,42 @@ public class UserController {
     var hash = database.findOptional(String.class,
         "SELECT pw_hash FROM users WHERE user_id = ?", username);
     
-    if (hash.isPresent() &&                                        
-        SCryptUtil.check(password, hash.get())) {                  
+    if (hash.isEmpty()) {
+        return;
+    }
+    if (credentialCache.isVerified(username, password, hash.get())) {
         request.attribute("subject", username);
+    } else if (passwordHasher.check(password, hash.get())) {
+        credentialCache.verified(username, password, hash.get());
+        request.attribute("subject", username);
+        if (passwordHasher.needsRehash(hash.get())) {
+            rehash(username, password, hash.get());
+        }
     }
   }
 
+  private void rehash(String username, String password, String oldHash) {
+    passwordHasher.hashAsync(password).thenAccept(newHash -> {
+      database.update("UPDATE users SET pw_hash = ? " +
+          "WHERE user_id = ? AND pw_hash = ?", newHash, username, oldHash);
+      credentialCache.invalidate(username);
+    }).whenComplete((ignored, error) -> {
+      if (error == null) return;
+      var cause = error instanceof CompletionException
+          ? error.getCause() : error;
+      if (cause instanceof PasswordHasher.OverloadedException) {
+        // Opportunistic; the next login will try again
+        logger.debug("Skipped rehash for {}: hasher busy", username);
+      } else {
+        logger.warn("Failed to rehash password for {}", username, cause);
+      }
+    });
+  }
+
+  public CredentialCache credentialCache() {
+    return credentialCache;
+  }
+
   public void requireAuthentication(Request request, Response response) {
     if (request.attribute("subject") == null) {
       // response.header("WWW-Authenticate",
@@ -86,6 +127,7 @@ public class UserController {
   }
 
   public Filter requirePermission(String method, String permission) {
+    var required = PermissionIndex.mask(permission);
     return (request, response) -> {                                   
       if (!method.equalsIgnoreCase(request.requestMethod())) {        
         return;                                                       
@@ -96,12 +138,7 @@ public class UserController {
       var spaceId = Long.parseLong(request.params(":spaceId"));
       var username = (String) request.attribute("subject");
  
-      var perms = database.findOptional(String.class,                 
-          "SELECT perms FROM permissions " +                          
-              "WHERE space_id = ? AND user_id = ?",                   
-          spaceId, username).orElse("");                              
- 
-      if (!perms.contains(permission)) {                              
+      if (!permissionIndex.hasPermission(spaceId, username, required)) {
         halt(403);                                                    
       }                                                               
     };
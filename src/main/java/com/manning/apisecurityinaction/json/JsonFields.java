@@ -0,0 +1,400 @@
+package com.manning.apisecurityinaction.json;
+
+import org.json.JSONException;
+import spark.Request;
+import spark.embeddedserver.jetty.HttpRequestWrapper;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Reads selected string fields from a JSON object without building a
+ * document tree. The input is parsed in a single pass from the request
+ * body or a string, values of other fields are validated and skipped,
+ * and only the requested values are turned into Strings. Errors are
+ * reported as {@link JSONException}s with the same messages as
+ * {@code JSONObject}, so callers keep the existing 400 responses.
+ */
+public final class JsonFields {
+    private static final Object NOT_A_STRING = new Object();
+    private static final int MAX_DEPTH = 32;
+
+    private final String[] names;
+    private final Object[] values;
+
+    private JsonFields(String[] names) {
+        this.names = names;
+        this.values = new Object[names.length];
+    }
+
+    /**
+     * Parses a UTF-8 JSON object from the stream, keeping the named fields.
+     */
+    public static JsonFields read(InputStream in, String... names) throws IOException {
+        var fields = new JsonFields(names);
+        new Parser(new Utf8Source(in)).readObject(fields::accept);
+        return fields;
+    }
+
+    /**
+     * Parses the request body, keeping the named fields. Spark wraps every
+     * servlet request in an {@link HttpRequestWrapper} whose input stream
+     * first copies the whole body into a byte array, so this reads the
+     * underlying request's stream instead. The body can't be read again
+     * afterwards, so nothing else in the route may call
+     * {@link Request#body()}.
+     */
+    public static JsonFields read(Request request, String... names) throws IOException {
+        var raw = request.raw();
+        if (raw instanceof HttpRequestWrapper) {
+            raw = (HttpServletRequest) ((HttpRequestWrapper) raw).getRequest();
+        }
+        return read(raw.getInputStream(), names);
+    }
+
+    public static JsonFields read(String json, String... names) {
+        var fields = new JsonFields(names);
+        try {
+            new Parser(new StringSource(json)).readObject(fields::accept);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return fields;
+    }
+
+    /**
+     * Parses a flat JSON object whose values are all strings into the map.
+     */
+    public static void readStrings(String json, Map<String, String> into) {
+        try {
+            new Parser(new StringSource(json)).readObject((parser, key) -> {
+                if (parser.peek() != '"') {
+                    throw new JSONException("JSONObject[" + quote(key) +
+                            "] is not a string.");
+                }
+                if (into.put(key, parser.readString()) != null) {
+                    throw new JSONException("Duplicate key " + quote(key));
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String getString(String name) {
+        var value = values[index(name)];
+        if (value == null) {
+            throw new JSONException("JSONObject[" + quote(name) + "] not found.");
+        }
+        if (value == NOT_A_STRING) {
+            throw new JSONException("JSONObject[" + quote(name) + "] is not a string.");
+        }
+        return (String) value;
+    }
+
+    public String optString(String name) {
+        var value = values[index(name)];
+        return value instanceof String ? (String) value : null;
+    }
+
+    private void accept(Parser parser, String key) throws IOException {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(key)) {
+                if (values[i] != null) {
+                    throw new JSONException("Duplicate key " + quote(key));
+                }
+                if (parser.peek() == '"') {
+                    values[i] = parser.readString();
+                } else {
+                    parser.skipValue(0);
+                    values[i] = NOT_A_STRING;
+                }
+                return;
+            }
+        }
+        parser.skipValue(0);
+    }
+
+    private int index(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("field was not requested: " + name);
+    }
+
+    private static String quote(String key) {
+        return '"' + key + '"';
+    }
+
+    private interface FieldHandler {
+        void field(Parser parser, String key) throws IOException;
+    }
+
+    private interface Source {
+        /** Returns the next UTF-16 code unit, or -1 at the end. */
+        int read() throws IOException;
+    }
+
+    private static final class StringSource implements Source {
+        private final String json;
+        private int pos;
+
+        StringSource(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public int read() {
+            return pos < json.length() ? json.charAt(pos++) : -1;
+        }
+    }
+
+    /**
+     * Decodes UTF-8 a byte at a time; the servlet stream is buffered.
+     */
+    private static final class Utf8Source implements Source {
+        private final InputStream in;
+        private int pendingLowSurrogate = -1;
+
+        Utf8Source(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pendingLowSurrogate >= 0) {
+                var low = pendingLowSurrogate;
+                pendingLowSurrogate = -1;
+                return low;
+            }
+            int b = in.read();
+            if (b < 0x80) {
+                return b;
+            }
+            int codePoint;
+            int extra;
+            if ((b & 0xe0) == 0xc0) {
+                codePoint = b & 0x1f;
+                extra = 1;
+            } else if ((b & 0xf0) == 0xe0) {
+                codePoint = b & 0x0f;
+                extra = 2;
+            } else if ((b & 0xf8) == 0xf0) {
+                codePoint = b & 0x07;
+                extra = 3;
+            } else {
+                throw new JSONException("Invalid UTF-8");
+            }
+            for (int i = 0; i < extra; ++i) {
+                int next = in.read();
+                if ((next & 0xc0) != 0x80) {
+                    throw new JSONException("Invalid UTF-8");
+                }
+                codePoint = (codePoint << 6) | (next & 0x3f);
+            }
+            if (codePoint < (extra == 1 ? 0x80 : extra == 2 ? 0x800 : 0x10000)
+                    || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                throw new JSONException("Invalid UTF-8");
+            }
+            if (codePoint >= 0x10000) {
+                pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                return Character.highSurrogate(codePoint);
+            }
+            return codePoint;
+        }
+    }
+
+    private static final class Parser {
+        private final Source source;
+        private final StringBuilder buffer = new StringBuilder(64);
+        private int next = -2;
+
+        Parser(Source source) {
+            this.source = source;
+        }
+
+        int peek() throws IOException {
+            if (next == -2) {
+                next = source.read();
+            }
+            return next;
+        }
+
+        private int take() throws IOException {
+            var c = peek();
+            next = -2;
+            return c;
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c;
+            while ((c = peek()) == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                take();
+            }
+            return c;
+        }
+
+        private void expect(char expected, String message) throws IOException {
+            if (skipWhitespace() != expected) {
+                throw new JSONException(message);
+            }
+            take();
+        }
+
+        void readObject(FieldHandler handler) throws IOException {
+            expect('{', "A JSONObject text must begin with '{'");
+            if (skipWhitespace() == '}') {
+                take();
+            } else {
+                while (true) {
+                    if (skipWhitespace() != '"') {
+                        throw new JSONException("Expected a string key");
+                    }
+                    var key = readString();
+                    expect(':', "Expected a ':' after a key");
+                    skipWhitespace();
+                    handler.field(this, key);
+                    var c = skipWhitespace();
+                    take();
+                    if (c == '}') break;
+                    if (c != ',') {
+                        throw new JSONException("Expected a ',' or '}'");
+                    }
+                }
+            }
+            if (skipWhitespace() != -1) {
+                throw new JSONException("Unexpected content after JSONObject");
+            }
+        }
+
+        String readString() throws IOException {
+            buffer.setLength(0);
+            take();
+            while (true) {
+                var c = take();
+                switch (c) {
+                    case -1:
+                    case '\n':
+                    case '\r':
+                        throw new JSONException("Unterminated string");
+                    case '"':
+                        return buffer.toString();
+                    case '\\':
+                        buffer.append(readEscape());
+                        break;
+                    default:
+                        buffer.append((char) c);
+                }
+            }
+        }
+
+        private char readEscape() throws IOException {
+            var c = take();
+            switch (c) {
+                case 'b': return '\b';
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'f': return '\f';
+                case 'r': return '\r';
+                case '"':
+                case '\'':
+                case '\\':
+                case '/':
+                    return (char) c;
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; ++i) {
+                        var digit = Character.digit(take(), 16);
+                        if (digit < 0) {
+                            throw new JSONException("Illegal escape.");
+                        }
+                        value = value << 4 | digit;
+                    }
+                    return (char) value;
+                default:
+                    throw new JSONException("Illegal escape.");
+            }
+        }
+
+        void skipValue(int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new JSONException("JSON nested too deeply");
+            }
+            var c = skipWhitespace();
+            switch (c) {
+                case '"':
+                    skipString();
+                    return;
+                case '{':
+                    take();
+                    if (skipWhitespace() == '}') {
+                        take();
+                        return;
+                    }
+                    while (true) {
+                        if (skipWhitespace() != '"') {
+                            throw new JSONException("Expected a string key");
+                        }
+                        skipString();
+                        expect(':', "Expected a ':' after a key");
+                        skipValue(depth + 1);
+                        var end = skipWhitespace();
+                        take();
+                        if (end == '}') return;
+                        if (end != ',') {
+                            throw new JSONException("Expected a ',' or '}'");
+                        }
+                    }
+                case '[':
+                    take();
+                    if (skipWhitespace() == ']') {
+                        take();
+                        return;
+                    }
+                    while (true) {
+                        skipValue(depth + 1);
+                        var end = skipWhitespace();
+                        take();
+                        if (end == ']') return;
+                        if (end != ',') {
+                            throw new JSONException("Expected a ',' or ']'");
+                        }
+                    }
+                default:
+                    skipLiteral();
+            }
+        }
+
+        private void skipString() throws IOException {
+            take();
+            while (true) {
+                var c = take();
+                if (c == -1 || c == '\n' || c == '\r') {
+                    throw new JSONException("Unterminated string");
+                }
+                if (c == '"') return;
+                if (c == '\\') readEscape();
+            }
+        }
+
+        /**
+         * Skips a number, true, false or null.
+         */
+        private void skipLiteral() throws IOException {
+            var length = 0;
+            int c;
+            while ((c = peek()) >= 0 && (Character.isLetterOrDigit(c)
+                    || c == '-' || c == '+' || c == '.')) {
+                take();
+                length++;
+            }
+            if (length == 0) {
+                throw new JSONException("Missing value");
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.manning.apisecurityinaction.json;
+
+import com.manning.apisecurityinaction.SecurityHeaders;
+import spark.Response;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes flat JSON objects of string fields directly as UTF-8, escaping
+ * exactly as {@code JSONObject} does. Responses are encoded into a
+ * per-thread buffer and written to the servlet output stream in one
+ * call, without building a JSONObject or an intermediate String.
+ */
+public final class JsonOutput {
+    private static final ThreadLocal<byte[]> BUFFER =
+            ThreadLocal.withInitial(() -> new byte[1024]);
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private JsonOutput() {
+    }
+
+    /**
+     * Sends {@code {"k1":"v1",...}} as the response body, applying the
+     * standard headers first because the response is committed here.
+     * Routes using this return an empty string.
+     */
+    public static String respond(Response response, int status,
+            String... keysAndValues) throws IOException {
+        SecurityHeaders.apply(response);
+        response.status(status);
+        var buffer = BUFFER.get();
+        var length = 0;
+        buffer[length++] = '{';
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (i > 0) {
+                buffer = ensure(buffer, length, 1);
+                buffer[length++] = ',';
+            }
+            buffer = ensure(buffer, length, 6 * keysAndValues[i].length() + 3);
+            length = quote(keysAndValues[i], buffer, length);
+            buffer[length++] = ':';
+            buffer = ensure(buffer, length, 6 * keysAndValues[i + 1].length() + 3);
+            length = quote(keysAndValues[i + 1], buffer, length);
+        }
+        buffer = ensure(buffer, length, 1);
+        buffer[length++] = '}';
+        var raw = response.raw();
+        raw.setContentLength(length);
+        raw.getOutputStream().write(buffer, 0, length);
+        return "";
+    }
+
+    /**
+     * Encodes a map of string values as a JSON object string.
+     */
+    public static String toString(Map<String, String> values) {
+        var out = new StringBuilder(32 * values.size() + 2);
+        out.append('{');
+        for (var entry : values.entrySet()) {
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            quote(entry.getKey(), out);
+            out.append(':');
+            quote(entry.getValue(), out);
+        }
+        return out.append('}').toString();
+    }
+
+    private static byte[] ensure(byte[] buffer, int length, int extra) {
+        if (length + extra <= buffer.length) {
+            return buffer;
+        }
+        var grown = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        if (grown.length <= 64 * 1024) {
+            BUFFER.set(grown);
+        }
+        return grown;
+    }
+
+    private static boolean needsUnicodeEscape(char c) {
+        return c < 0x20 || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100);
+    }
+
+    private static int quote(String value, byte[] out, int pos) {
+        out[pos++] = '"';
+        char previous = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out[pos++] = '\\';
+                    out[pos++] = (byte) c;
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        out[pos++] = '\\';
+                    }
+                    out[pos++] = '/';
+                    break;
+                case '\b': pos = escape(out, pos, 'b'); break;
+                case '\t': pos = escape(out, pos, 't'); break;
+                case '\n': pos = escape(out, pos, 'n'); break;
+                case '\f': pos = escape(out, pos, 'f'); break;
+                case '\r': pos = escape(out, pos, 'r'); break;
+                default:
+                    if (needsUnicodeEscape(c)) {
+                        out[pos++] = '\\';
+                        out[pos++] = 'u';
+                        out[pos++] = HEX[c >> 12 & 0xf];
+                        out[pos++] = HEX[c >> 8 & 0xf];
+                        out[pos++] = HEX[c >> 4 & 0xf];
+                        out[pos++] = HEX[c & 0xf];
+                    } else if (c < 0x80) {
+                        out[pos++] = (byte) c;
+                    } else if (c < 0x800) {
+                        out[pos++] = (byte) (0xc0 | c >> 6);
+                        out[pos++] = (byte) (0x80 | c & 0x3f);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        var codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        out[pos++] = (byte) (0xf0 | codePoint >> 18);
+                        out[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                        out[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                        out[pos++] = (byte) (0x80 | codePoint & 0x3f);
+                    } else if (Character.isSurrogate(c)) {
+                        out[pos++] = '?';
+                    } else {
+                        out[pos++] = (byte) (0xe0 | c >> 12);
+                        out[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                        out[pos++] = (byte) (0x80 | c & 0x3f);
+                    }
+            }
+            previous = c;
+        }
+        out[pos++] = '"';
+        return pos;
+    }
+
+    private static int escape(byte[] out, int pos, char c) {
+        out[pos++] = '\\';
+        out[pos++] = (byte) c;
+        return pos;
+    }
+
+    private static void quote(String value, StringBuilder out) {
+        out.append('"');
+        char previous = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        out.append('\\');
+                    }
+                    out.append(c);
+                    break;
+                case '\b': out.append("\\b"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\f': out.append("\\f"); break;
+                case '\r': out.append("\\r"); break;
+                default:
+                    if (needsUnicodeEscape(c)) {
+                        out.append("\\u")
+                                .append((char) HEX[c >> 12 & 0xf])
+                                .append((char) HEX[c >> 8 & 0xf])
+                                .append((char) HEX[c >> 4 & 0xf])
+                                .append((char) HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+            previous = c;
+        }
+        out.append('"');
+    }
+}
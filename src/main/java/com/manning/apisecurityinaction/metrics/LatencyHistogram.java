@@ -0,0 +1,65 @@
+package com.manning.apisecurityinaction.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram. Recording is a bucket search over a
+ * short array plus LongAdder increments, so concurrent recorders never
+ * contend on a lock or a single cache line.
+ */
+public class LatencyHistogram {
+    static final long[] BOUNDS_NANOS = {
+            50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L,
+            25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L,
+            500_000_000L, 1_000_000_000L, 2_500_000_000L, 10_000_000_000L
+    };
+    private static final String[] LE = new String[BOUNDS_NANOS.length + 1];
+
+    static {
+        for (int i = 0; i < BOUNDS_NANOS.length; ++i) {
+            LE[i] = BigDecimal.valueOf(BOUNDS_NANOS[i], 9)
+                    .stripTrailingZeros().toPlainString();
+        }
+        LE[BOUNDS_NANOS.length] = "+Inf";
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        var i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            ++i;
+        }
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    void writeTo(StringBuilder out, String name, String labels) {
+        var prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            cumulative += buckets[i].sum();
+            out.append(name).append("_bucket{").append(prefix)
+                    .append("le=\"").append(LE[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        var braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ')
+                .append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(braces).append(' ')
+                .append(cumulative).append('\n');
+    }
+}
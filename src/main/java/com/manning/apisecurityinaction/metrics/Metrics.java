@@ -0,0 +1,120 @@
+package com.manning.apisecurityinaction.metrics;
+
+import spark.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of latency histograms and counters, rendered in the
+ * Prometheus text exposition format.
+ */
+public class Metrics {
+    private static final int MAX_SERIES_PER_FAMILY = 500;
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+
+    private static class Family {
+        final String help;
+        final ConcurrentHashMap<String, LatencyHistogram> series =
+                new ConcurrentHashMap<>();
+        final LatencyHistogram overflow = new LatencyHistogram();
+
+        Family(String help) {
+            this.help = help;
+        }
+    }
+
+    private static class Counter {
+        final String help;
+        final String type;
+        final LongSupplier value;
+
+        Counter(String help, String type, LongSupplier value) {
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    public void histogramFamily(String name, String help) {
+        families.putIfAbsent(name, new Family(help));
+    }
+
+    /**
+     * Returns the histogram for the given label set, which must already be
+     * formatted as {@code key="value",...}. Once a family has too many
+     * series, new label sets share a single overflow series.
+     */
+    public LatencyHistogram histogram(String family, String labels) {
+        var f = families.get(family);
+        if (f == null) {
+            throw new IllegalArgumentException("unknown metric " + family);
+        }
+        var histogram = f.series.get(labels);
+        if (histogram != null) {
+            return histogram;
+        }
+        if (f.series.size() >= MAX_SERIES_PER_FAMILY) {
+            return f.overflow;
+        }
+        return f.series.computeIfAbsent(labels, k -> new LatencyHistogram());
+    }
+
+    public void counter(String name, String help, LongSupplier value) {
+        counters.put(name, new Counter(help, "counter", value));
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        counters.put(name, new Counter(help, "gauge", value));
+    }
+
+    public Filter timed(String filterName, Filter filter) {
+        histogramFamily("natter_filter_duration_seconds",
+                "Time spent in each before filter");
+        var histogram = histogram("natter_filter_duration_seconds",
+                label("filter", filterName));
+        return (request, response) -> {
+            var start = System.nanoTime();
+            try {
+                filter.handle(request, response);
+            } finally {
+                histogram.recordSince(start);
+            }
+        };
+    }
+
+    public String scrape() {
+        var out = new StringBuilder(16 * 1024);
+        for (var entry : families.entrySet()) {
+            var name = entry.getKey();
+            var family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ')
+                    .append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            for (var series : new TreeMap<>(family.series).entrySet()) {
+                series.getValue().writeTo(out, name, series.getKey());
+            }
+            if (family.series.size() >= MAX_SERIES_PER_FAMILY) {
+                family.overflow.writeTo(out, name, "overflow=\"true\"");
+            }
+        }
+        for (var entry : counters.entrySet()) {
+            var name = entry.getKey();
+            out.append("# HELP ").append(name).append(' ')
+                    .append(entry.getValue().help).append('\n');
+            out.append("# TYPE ").append(name).append(' ')
+                    .append(entry.getValue().type).append('\n');
+            out.append(name).append(' ')
+                    .append(entry.getValue().value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\")
+                .replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+}
@@ -0,0 +1,87 @@
+package com.manning.apisecurityinaction.metrics;
+
+import javax.sql.DataSource;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps a DataSource so that every statement executed through it, and
+ * so every Dalesbred {@code Database} call, is timed per SQL shape.
+ * Dalesbred always uses parameterized prepared statements, so the SQL
+ * text itself identifies the statement shape.
+ */
+public class TimedDataSource {
+    private static final String FAMILY = "natter_sql_duration_seconds";
+    private static final Set<String> EXECUTE_METHODS = Set.of(
+            "execute", "executeQuery", "executeUpdate", "executeBatch",
+            "executeLargeUpdate", "executeLargeBatch");
+
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<>();
+
+    private TimedDataSource(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.histogramFamily(FAMILY, "SQL statement execution time");
+    }
+
+    public static DataSource wrap(DataSource dataSource, Metrics metrics) {
+        var timed = new TimedDataSource(metrics);
+        return proxy(DataSource.class, dataSource, (target, method, args) -> {
+            var result = method.invoke(target, args);
+            if (result instanceof Connection) {
+                return timed.connection((Connection) result);
+            }
+            return result;
+        });
+    }
+
+    private Connection connection(Connection connection) {
+        return proxy(Connection.class, connection, (target, method, args) -> {
+            var result = method.invoke(target, args);
+            if (result instanceof PreparedStatement
+                    && args != null && args[0] instanceof String) {
+                return statement((PreparedStatement) result, (String) args[0]);
+            }
+            return result;
+        });
+    }
+
+    private PreparedStatement statement(PreparedStatement statement, String sql) {
+        var histogram = histograms.computeIfAbsent(sql, s ->
+                metrics.histogram(FAMILY, Metrics.label("statement", shape(s))));
+        return proxy(PreparedStatement.class, statement, (target, method, args) -> {
+            if (!EXECUTE_METHODS.contains(method.getName())) {
+                return method.invoke(target, args);
+            }
+            var start = System.nanoTime();
+            try {
+                return method.invoke(target, args);
+            } finally {
+                histogram.recordSince(start);
+            }
+        });
+    }
+
+    private static String shape(String sql) {
+        var shape = sql.trim().replaceAll("\\s+", " ");
+        return shape.length() > 120 ? shape.substring(0, 120) : shape;
+    }
+
+    private interface Handler<T> {
+        Object invoke(T target, Method method, Object[] args) throws Throwable;
+    }
+
+    private static <T> T proxy(Class<T> type, T target, Handler<T> handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[] { type }, (proxy, method, args) -> {
+                    try {
+                        return handler.invoke(target, method, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }));
+    }
+}
@@ -0,0 +1,343 @@
+package com.manning.apisecurityinaction.persistence;
+
+import com.manning.apisecurityinaction.metrics.LatencyHistogram;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.Logger;
+
+/**
+ * A bounded JDBC connection pool. Callers wait at most the acquire
+ * timeout for a connection, idle connections are closed after the idle
+ * timeout, and each connection keeps an LRU cache of prepared statements
+ * so that the fixed SQL used by the controllers is parsed once per
+ * connection rather than on every call. Closing a pooled statement
+ * returns it to the cache; closing a pooled connection rolls back any
+ * open transaction and returns it to the pool.
+ */
+public class ConnectionPool implements DataSource {
+
+    private final class Physical {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements;
+        final Set<PreparedStatement> inUse =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        long lastUsedNanos;
+
+        Physical(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) return false;
+                    if (!inUse.contains(eldest.getValue())) {
+                        closeQuietly(eldest.getValue());
+                    }
+                    return true;
+                }
+            };
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            var statement = statements.get(sql);
+            if (statement != null && !inUse.contains(statement)) {
+                statementHits.increment();
+            } else {
+                statementMisses.increment();
+                var fresh = connection.prepareStatement(sql);
+                if (statement == null) {
+                    statements.put(sql, fresh);
+                }
+                statement = fresh;
+            }
+            inUse.add(statement);
+            return statement;
+        }
+
+        void release(PreparedStatement statement) throws SQLException {
+            inUse.remove(statement);
+            if (statements.containsValue(statement)) {
+                statement.clearParameters();
+                statement.clearBatch();
+            } else {
+                statement.close();
+            }
+        }
+
+        void closeLeaked() {
+            for (var statement : inUse) {
+                statements.values().remove(statement);
+                closeQuietly(statement);
+            }
+            inUse.clear();
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final long acquireTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final int statementCacheSize;
+    private final LatencyHistogram waitTime;
+    private final Semaphore permits;
+    private final BlockingDeque<Physical> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+    private final ScheduledExecutorService evictor;
+
+    public ConnectionPool(String url, String user, String password, int maxSize,
+            Duration acquireTimeout, Duration idleTimeout, int statementCacheSize,
+            LatencyHistogram waitTime) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.acquireTimeoutNanos = acquireTimeout.toNanos();
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.statementCacheSize = statementCacheSize;
+        this.waitTime = waitTime;
+        this.permits = new Semaphore(maxSize, true);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var period = Math.max(1, idleTimeout.toMillis() / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        var start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                timeouts.increment();
+                throw new SQLTransientConnectionException(
+                        "timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("interrupted", e);
+        }
+        waitTime.recordSince(start);
+
+        try {
+            var physical = idle.pollFirst();
+            if (physical == null || physical.connection.isClosed()) {
+                physical = new Physical(DriverManager.getConnection(url, user, password));
+            }
+            active.incrementAndGet();
+            return handle(physical);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        throw new SQLFeatureNotSupportedException("pool has fixed credentials");
+    }
+
+    public int active() {
+        return active.get();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    public int waiting() {
+        return permits.getQueueLength();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public long statementCacheHits() {
+        return statementHits.sum();
+    }
+
+    public long statementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    public void shutdown() {
+        evictor.shutdownNow();
+        Physical physical;
+        while ((physical = idle.pollLast()) != null) {
+            close(physical);
+        }
+    }
+
+    private void release(Physical physical) {
+        var healthy = true;
+        try {
+            physical.closeLeaked();
+            if (!physical.connection.getAutoCommit()) {
+                physical.connection.rollback();
+                physical.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            healthy = false;
+        }
+        active.decrementAndGet();
+        if (healthy) {
+            physical.lastUsedNanos = System.nanoTime();
+            idle.offerFirst(physical);
+        } else {
+            close(physical);
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes connections idle for longer than the idle timeout. Returned
+     * connections go on the front of the deque, so the oldest are at the
+     * back.
+     */
+    private void evictIdle() {
+        var now = System.nanoTime();
+        Physical physical;
+        while ((physical = idle.pollLast()) != null) {
+            if (now - physical.lastUsedNanos < idleTimeoutNanos) {
+                idle.offerLast(physical);
+                return;
+            }
+            close(physical);
+        }
+    }
+
+    private void close(Physical physical) {
+        physical.statements.values().forEach(ConnectionPool::closeQuietly);
+        closeQuietly(physical.connection);
+    }
+
+    private Connection handle(Physical physical) {
+        var closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (closed.compareAndSet(false, true)) {
+                                release(physical);
+                            }
+                            return null;
+                        case "isClosed":
+                            return closed.get() || physical.connection.isClosed();
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            break;
+                    }
+                    if (closed.get()) {
+                        throw new SQLException("connection is closed");
+                    }
+                    if (method.getName().equals("prepareStatement")
+                            && args.length == 1 && statementCacheSize > 0) {
+                        return statement(physical, (Connection) proxy,
+                                physical.prepare((String) args[0]));
+                    }
+                    return invoke(physical.connection, method, args);
+                });
+    }
+
+    private static PreparedStatement statement(Physical physical,
+            Connection connection, PreparedStatement statement) {
+        var closed = new AtomicBoolean();
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (closed.compareAndSet(false, true)) {
+                                physical.release(statement);
+                            }
+                            return null;
+                        case "isClosed":
+                            return closed.get();
+                        case "getConnection":
+                            return connection;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            break;
+                    }
+                    if (closed.get()) {
+                        throw new SQLException("statement is closed");
+                    }
+                    return invoke(statement, method, args);
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already broken; nothing more to do
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(acquireTimeoutNanos);
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        throw new SQLException("not a wrapper for " + type);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> type) {
+        return type.isInstance(this);
+    }
+}
@@ -0,0 +1,460 @@
+package com.manning.apisecurityinaction.persistence;
+
+import org.slf4j.*;
+
+import javax.sql.DataSource;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.zip.*;
+
+/**
+ * Periodically snapshots the in-memory database to a directory so that a
+ * restart can restore it instead of starting empty.
+ *
+ * <p>A full snapshot is an H2 {@code SCRIPT} of the whole database,
+ * gzipped. Between full snapshots, deltas hold the next sequence values
+ * and the rows appended to the append-only tables (messages and the
+ * audit log) since the previous snapshot. Each of those tables is
+ * selected by an id range that ends at a watermark from its writer,
+ * below which every row has committed, so a row that commits late is
+ * picked up by the next delta instead of being skipped. Restoring a
+ * delta replaces its id range, which also removes any row the full
+ * snapshot caught above its own watermark.
+ *
+ * <p>The other tables are small but updated in place, so they are only
+ * saved by full snapshots; changes to them since the last full snapshot
+ * are lost if the process dies. {@link #stop()} always takes a full
+ * snapshot. Snapshot files are readable by the owner only.
+ */
+public class DatabaseSnapshots {
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseSnapshots.class);
+
+    private static final int MAGIC = 0x4e545244; // "NTRD"
+    private static final int VERSION = 3;
+
+    private static final List<String> SEQUENCES =
+            List.of("space_id_seq", "msg_id_seq", "audit_id_seq");
+    private static final Map<String, String> APPEND_ONLY_TABLES =
+            Map.of("messages", "msg_id", "audit_log", "row_id");
+
+    private static final byte NULL = 0, LONG = 1, STRING = 2, TIMESTAMP = 3;
+
+    private final DataSource dataSource;
+    private final Path directory;
+    private final int deltasPerFull;
+    private final FileAttribute<?>[] ownerOnly;
+    private final Map<String, LongSupplier> committedBelow = new LinkedHashMap<>();
+    private ScheduledExecutorService executor;
+
+    private String fullName;
+    private int deltas;
+    // Where the next delta of each append-only table starts
+    private final Map<String, Long> watermarks = new HashMap<>();
+
+    /**
+     * @param dataSource a data source for an admin user, which SCRIPT and
+     *                   RUNSCRIPT require.
+     */
+    public DatabaseSnapshots(DataSource dataSource, Path directory, int deltasPerFull)
+            throws IOException {
+        this.dataSource = dataSource;
+        this.deltasPerFull = deltasPerFull;
+        var posix = directory.getFileSystem().supportedFileAttributeViews()
+                .contains("posix");
+        this.ownerOnly = posix
+                ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rw-------")) }
+                : new FileAttribute<?>[0];
+        this.directory = posix
+                ? Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")))
+                : Files.createDirectories(directory);
+    }
+
+    /**
+     * Restores the latest full snapshot and its deltas into an empty
+     * database. Returns false if there is nothing to restore.
+     */
+    public boolean restore() throws IOException, SQLException {
+        var full = latestFull();
+        if (full.isEmpty()) {
+            return false;
+        }
+        var start = System.nanoTime();
+        var deltaFiles = deltasFor(full.get());
+        long rows = 0;
+        try (var conn = dataSource.getConnection();
+             var stmt = conn.createStatement()) {
+            stmt.execute("RUNSCRIPT FROM " + literal(full.get()) + " COMPRESSION GZIP");
+            var sequences = new HashMap<String, Long>();
+            for (var delta : deltaFiles) {
+                rows += applyDelta(conn, delta, sequences);
+            }
+            // Only the newest values matter
+            for (var sequence : sequences.entrySet()) {
+                stmt.execute("ALTER SEQUENCE " + sequence.getKey() +
+                        " RESTART WITH " + sequence.getValue());
+            }
+        }
+        logger.info("Restored {} and {} deltas ({} delta rows) in {} ms",
+                full.get().getFileName(), deltaFiles.size(), rows,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * Sets where the watermark of an append-only table comes from. It must
+     * return an id below which every row has committed, and no row
+     * written later may get a smaller one. Every append-only table needs
+     * one before {@link #start(Duration)}.
+     */
+    public synchronized void committedBelow(String table, LongSupplier watermark) {
+        if (!APPEND_ONLY_TABLES.containsKey(table)) {
+            throw new IllegalArgumentException("not an append-only table: " + table);
+        }
+        committedBelow.put(table, watermark);
+    }
+
+    public synchronized void start(Duration interval) {
+        if (executor != null) {
+            throw new IllegalStateException("already started");
+        }
+        if (!committedBelow.keySet().containsAll(APPEND_ONLY_TABLES.keySet())) {
+            throw new IllegalStateException("missing append-only table watermarks");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "database-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> snapshotQuietly(false),
+                interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the schedule and takes a final, full snapshot.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executor = null;
+            }
+        }
+        snapshotQuietly(true);
+    }
+
+    /**
+     * Writes a full snapshot if none has been taken since startup, enough
+     * deltas have accumulated or an append-only table has no watermark,
+     * otherwise a delta.
+     */
+    public void snapshot() throws IOException, SQLException {
+        snapshot(false);
+    }
+
+    private synchronized void snapshot(boolean full) throws IOException, SQLException {
+        var start = System.nanoTime();
+        var now = System.currentTimeMillis();
+        Path written;
+        if (full || fullName == null || deltas >= deltasPerFull
+                || !watermarks.keySet().containsAll(APPEND_ONLY_TABLES.keySet())) {
+            written = writeFull(now);
+        } else {
+            written = writeDelta(now);
+        }
+        logger.info("Wrote {} ({} KiB) in {} ms", written.getFileName(),
+                Files.size(written) / 1024,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void snapshotQuietly(boolean full) {
+        try {
+            snapshot(full);
+        } catch (IOException | SQLException | RuntimeException e) {
+            logger.error("Database snapshot failed", e);
+        }
+    }
+
+    private Path writeFull(long now) throws IOException, SQLException {
+        var name = String.format("full-%013d", now);
+        var target = directory.resolve(name + ".sql.gz");
+        var tmp = createPrivate(directory.resolve(name + ".tmp"));
+        // Taken first, so every row below them is in the script; rows
+        // above them that it also caught are replaced by the next delta
+        var fullWatermarks = new HashMap<String, Long>();
+        for (var table : committedBelow.entrySet()) {
+            fullWatermarks.put(table.getKey(), table.getValue().getAsLong());
+        }
+        try (var conn = dataSource.getConnection();
+             var stmt = conn.createStatement()) {
+            stmt.execute("SCRIPT TO " + literal(tmp) + " COMPRESSION GZIP");
+        }
+        restrictPermissions(tmp);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        fullName = name;
+        deltas = 0;
+        watermarks.clear();
+        watermarks.putAll(fullWatermarks);
+        deleteOlderThan(name);
+        return target;
+    }
+
+    private Path writeDelta(long now) throws IOException, SQLException {
+        var name = String.format("%s-delta-%06d", fullName, deltas + 1);
+        var target = directory.resolve(name + ".bin.gz");
+        var tmp = createPrivate(directory.resolve(name + ".tmp"));
+        var deltaWatermarks = new HashMap<String, Long>();
+
+        try (var conn = dataSource.getConnection();
+             var out = new DataOutputStream(new BufferedOutputStream(
+                     new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(now);
+
+            out.writeInt(SEQUENCES.size());
+            for (var sequence : SEQUENCES) {
+                out.writeUTF(sequence);
+                out.writeLong(sequenceValue(conn, sequence));
+            }
+
+            out.writeInt(committedBelow.size());
+            for (var table : committedBelow.entrySet()) {
+                var idColumn = APPEND_ONLY_TABLES.get(table.getKey());
+                var from = watermarks.get(table.getKey());
+                var to = Math.max(from, table.getValue().getAsLong());
+                out.writeUTF(table.getKey());
+                out.writeUTF(idColumn);
+                out.writeLong(from);
+                out.writeLong(to);
+                writeRows(conn, out, "SELECT * FROM " + table.getKey() +
+                        " WHERE " + idColumn + " >= ? AND " + idColumn + " < ?",
+                        from, to);
+                deltaWatermarks.put(table.getKey(), to);
+            }
+        }
+        restrictPermissions(tmp);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        deltas++;
+        watermarks.putAll(deltaWatermarks);
+        return target;
+    }
+
+    private Path createPrivate(Path file) throws IOException {
+        // Left behind if a previous snapshot failed part way
+        Files.deleteIfExists(file);
+        return Files.createFile(file, ownerOnly);
+    }
+
+    private void restrictPermissions(Path file) throws IOException {
+        // H2 rewrites the file SCRIPT writes to, so check it again
+        if (ownerOnly.length > 0) {
+            Files.setPosixFilePermissions(file,
+                    PosixFilePermissions.fromString("rw-------"));
+        }
+    }
+
+    private static long sequenceValue(Connection conn, String sequence)
+            throws SQLException {
+        // The next value to be handed out; CURRENT_VALUE is one increment behind
+        try (var stmt = conn.prepareStatement("SELECT CURRENT_VALUE + INCREMENT " +
+                "FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_NAME = ?")) {
+            stmt.setString(1, sequence.toUpperCase(Locale.ROOT));
+            try (var rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("no such sequence: " + sequence);
+                }
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private static void writeRows(Connection conn, DataOutputStream out,
+            String sql, long from, long to) throws SQLException, IOException {
+        try (var stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, from);
+            stmt.setLong(2, to);
+            stmt.setFetchSize(500);
+            try (var rs = stmt.executeQuery()) {
+                var columns = rs.getMetaData().getColumnCount();
+                out.writeInt(columns);
+                while (rs.next()) {
+                    out.writeBoolean(true);
+                    for (int i = 1; i <= columns; ++i) {
+                        writeValue(out, rs.getObject(i));
+                    }
+                }
+                out.writeBoolean(false);
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Number) {
+            out.writeByte(LONG);
+            out.writeLong(((Number) value).longValue());
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Timestamp) {
+            var timestamp = (Timestamp) value;
+            out.writeByte(TIMESTAMP);
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        } else {
+            throw new IOException("unsupported column type: " + value.getClass());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        var tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case LONG:
+                return in.readLong();
+            case STRING:
+                return in.readUTF();
+            case TIMESTAMP:
+                var timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            default:
+                throw new IOException("corrupt snapshot: bad value tag " + tag);
+        }
+    }
+
+    private static long applyDelta(Connection conn, Path delta,
+            Map<String, Long> sequences) throws IOException, SQLException {
+        long rows = 0;
+        try (var in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(delta))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a snapshot delta: " + delta);
+            }
+            in.readLong();
+
+            var sequenceCount = in.readInt();
+            for (int i = 0; i < sequenceCount; ++i) {
+                var sequence = in.readUTF();
+                if (!SEQUENCES.contains(sequence)) {
+                    throw new IOException("unknown sequence: " + sequence);
+                }
+                sequences.put(sequence, in.readLong());
+            }
+
+            conn.setAutoCommit(false);
+            try (var stmt = conn.createStatement()) {
+                stmt.execute("SET REFERENTIAL_INTEGRITY FALSE");
+                var tables = in.readInt();
+                for (int i = 0; i < tables; ++i) {
+                    var table = in.readUTF();
+                    var idColumn = in.readUTF();
+                    if (!idColumn.equals(APPEND_ONLY_TABLES.get(table))) {
+                        throw new IOException("unknown table: " + table);
+                    }
+                    try (var delete = conn.prepareStatement("DELETE FROM " + table +
+                            " WHERE " + idColumn + " >= ? AND " + idColumn + " < ?")) {
+                        delete.setLong(1, in.readLong());
+                        delete.setLong(2, in.readLong());
+                        delete.executeUpdate();
+                    }
+                    rows += insertRows(conn, in, table);
+                }
+                conn.commit();
+            } catch (IOException | SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                try (var stmt = conn.createStatement()) {
+                    stmt.execute("SET REFERENTIAL_INTEGRITY TRUE");
+                }
+                conn.setAutoCommit(true);
+            }
+        }
+        return rows;
+    }
+
+    private static long insertRows(Connection conn, DataInputStream in, String table)
+            throws IOException, SQLException {
+        var columns = in.readInt();
+        var placeholders = String.join(",", Collections.nCopies(columns, "?"));
+        long rows = 0;
+        try (var insert = conn.prepareStatement(
+                "INSERT INTO " + table + " VALUES(" + placeholders + ")")) {
+            while (in.readBoolean()) {
+                for (int i = 1; i <= columns; ++i) {
+                    insert.setObject(i, readValue(in));
+                }
+                insert.addBatch();
+                if (++rows % 500 == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        return rows;
+    }
+
+    private Optional<Path> latestFull() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().matches("full-\\d+\\.sql\\.gz"))
+                    .max(Comparator.comparing(f -> f.getFileName().toString()));
+        }
+    }
+
+    private List<Path> deltasFor(Path full) throws IOException {
+        var prefix = full.getFileName().toString().replace(".sql.gz", "-delta-");
+        try (var files = Files.list(directory)) {
+            return files.filter(f -> {
+                        var name = f.getFileName().toString();
+                        return name.startsWith(prefix) && name.endsWith(".bin.gz");
+                    })
+                    .sorted(Comparator.comparing(f -> f.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Keeps the newest full snapshot, the one before it and their deltas.
+     */
+    private void deleteOlderThan(String current) throws IOException {
+        List<String> fulls;
+        try (var files = Files.list(directory)) {
+            fulls = files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.matches("full-\\d+\\.sql\\.gz"))
+                    .map(name -> name.substring(0, name.length() - ".sql.gz".length()))
+                    .filter(name -> name.compareTo(current) < 0)
+                    .sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+        for (var old : fulls.subList(Math.min(1, fulls.size()), fulls.size())) {
+            try (var files = Files.list(directory)) {
+                for (var file : (Iterable<Path>) files.filter(f ->
+                        f.getFileName().toString().startsWith(old))::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static String literal(Path path) {
+        return "'" + path.toAbsolutePath().toString().replace("'", "''") + "'";
+    }
+}
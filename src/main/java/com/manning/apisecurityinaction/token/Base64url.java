@@ -1,12 +1,22 @@
 package com.manning.apisecurityinaction.token;
  
-import java.util.Base64;
+import java.util.*;
  
 public class Base64url {
     private static final Base64.Encoder encoder =      
             Base64.getUrlEncoder().withoutPadding();   
     private static final Base64.Decoder decoder =      
             Base64.getUrlDecoder();                    
+    private static final byte[] alphabet = new byte[128];
+
+    static {
+        Arrays.fill(alphabet, (byte) -1);
+        var chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ" +
+                "abcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < chars.length(); ++i) {
+            alphabet[chars.charAt(i)] = (byte) i;
+        }
+    }
  
     public static String encode(byte[] data) {         
         return encoder.encodeToString(data);           
@@ -15,4 +25,27 @@ public class Base64url {
     public static byte[] decode(String encoded) {      
         return decoder.decode(encoded);                
     }                                                  
-}
\ No newline at end of file
+
+    public static int decode(CharSequence encoded, int from, int to,
+            byte[] output) {
+        var length = to - from;
+        if (length % 4 == 1 || length * 3 / 4 > output.length) {
+            return -1;
+        }
+        int bits = 0, pending = 0, written = 0;
+        for (int i = from; i < to; ++i) {
+            var c = encoded.charAt(i);
+            var value = c < 128 ? alphabet[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+            pending += 6;
+            if (pending >= 8) {
+                pending -= 8;
+                output[written++] = (byte) (bits >> pending);
+            }
+        }
+        return written;
+    }
+}
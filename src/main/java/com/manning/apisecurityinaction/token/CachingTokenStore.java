@@ -0,0 +1,84 @@
+package com.manning.apisecurityinaction.token;
+
+import com.google.common.cache.*;
+import spark.Request;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * Caches tokens read from the delegate. A revoke invalidates the cached
+ * token and then records the token id as revoked; every read checks the
+ * revoked ids first, and a read that loaded a token checks them again
+ * after caching it. A read that loaded the token just before the revoke
+ * can therefore only leave it cached if it did so before the id was
+ * recorded, and that entry expires before the record does. Revoked ids
+ * are kept for the cache TTL whatever their number, as evicting one
+ * early could make a revoked token valid again.
+ */
+public class CachingTokenStore implements TokenStore {
+
+    private final TokenStore delegate;
+    private final Cache<String, Token> cache;
+    private final Cache<String, Boolean> revoked;
+
+    public CachingTokenStore(TokenStore delegate, long maximumSize,
+            Duration maximumTtl) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maximumTtl)
+                .recordStats()
+                .build();
+        this.revoked = CacheBuilder.newBuilder()
+                .expireAfterWrite(maximumTtl)
+                .build();
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        var tokenId = delegate.create(request, token);
+        cache.put(tokenId, token);
+        return tokenId;
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        if (revoked.getIfPresent(tokenId) != null) {
+            cache.invalidate(tokenId);
+            return Optional.empty();
+        }
+        var cached = cache.getIfPresent(tokenId);
+        if (cached != null) {
+            if (Instant.now().isBefore(cached.expiry)) {
+                return Optional.of(cached);
+            }
+            cache.invalidate(tokenId);
+        }
+
+        var token = delegate.read(request, tokenId);
+        token.filter(t -> Instant.now().isBefore(t.expiry))
+                .ifPresent(t -> {
+                    cache.put(tokenId, t);
+                    if (revoked.getIfPresent(tokenId) != null) {
+                        cache.invalidate(tokenId);
+                    }
+                });
+        return token;
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        cache.invalidate(tokenId);
+        revoked.put(tokenId, Boolean.TRUE);
+        delegate.revoke(request, tokenId);
+    }
+
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+}
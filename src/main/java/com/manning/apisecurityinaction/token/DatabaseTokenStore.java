@@ -1,15 +1,12 @@
 package com.manning.apisecurityinaction.token;
  
 import org.dalesbred.Database;
-import org.json.JSONObject;
+import com.manning.apisecurityinaction.json.*;
 import spark.Request;
  
 import java.security.SecureRandom;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.*;
-
-import java.util.concurrent.TimeUnit;
  
 public class DatabaseTokenStore implements TokenStore {
     private final Database database;
@@ -18,8 +15,6 @@ public class DatabaseTokenStore implements TokenStore {
     public DatabaseTokenStore(Database database) {
         this.database = database;
         this.secureRandom = new SecureRandom();          
-        Executors.newSingleThreadScheduledExecutor()
-         .scheduleAtFixedRate(this::deleteExpiredTokens, 10, 10, TimeUnit.MINUTES);          
     }
     private String randomId() {
         var bytes = new byte[20];                                    
@@ -30,14 +25,17 @@ public class DatabaseTokenStore implements TokenStore {
     @Override
     public String create(Request request, Token token) {
         var tokenId = randomId();                                    
-        var attrs = new JSONObject(token.attributes).toString();     
+        store(tokenId, token);
+        return tokenId;
+    }
+
+    void store(String tokenId, Token token) {
+        var attrs = JsonOutput.toString(token.attributes);
  
         database.updateUnique("INSERT INTO " +
             "tokens(token_id, user_id, expiry, attributes) " +
             "VALUES(?, ?, ?, ?)", hash(tokenId), token.username,
                 token.expiry, attrs);
- 
-        return tokenId;
     }
  
     @Override
@@ -50,12 +48,8 @@ public class DatabaseTokenStore implements TokenStore {
     private Token readToken(ResultSet resultSet) throws SQLException {                                    
         var username = resultSet.getString(1);                       
         var expiry = resultSet.getTimestamp(2).toInstant();          
-        var json = new JSONObject(resultSet.getString(3));           
- 
         var token = new Token(expiry, username);                     
-        for (var key : json.keySet()) {                              
-            token.attributes.put(key, json.getString(key));          
-        }                                                            
+        JsonFields.readStrings(resultSet.getString(3), token.attributes);
         return token;                                                
     }
  
@@ -65,8 +59,9 @@ public class DatabaseTokenStore implements TokenStore {
                 hash(tokenId));                                            
     }
 
-    public void deleteExpiredTokens() {
-        database.update("DELETE FROM tokens WHERE expiry < current_timestamp");
+    public int deleteExpiredTokens(int limit) {
+        return database.update("DELETE FROM tokens " +
+                "WHERE expiry < current_timestamp LIMIT ?", limit);
     }
 
     private String hash(String tokenId) {
@@ -0,0 +1,126 @@
+package com.manning.apisecurityinaction.token;
+
+import org.slf4j.*;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Periodically deletes expired tokens from a {@link DatabaseTokenStore}
+ * in small batches, each in its own transaction. While a sweep keeps
+ * finding full batches it reschedules itself after a pause as long as
+ * the last batch took, so a large backlog is drained at roughly half
+ * duty cycle instead of in one long delete.
+ */
+public class ExpiredTokenReaper {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ExpiredTokenReaper.class);
+
+    public static class Sweep {
+        public final long rowsDeleted;
+        public final int batches;
+        public final Duration duration;
+
+        Sweep(long rowsDeleted, int batches, Duration duration) {
+            this.rowsDeleted = rowsDeleted;
+            this.batches = batches;
+            this.duration = duration;
+        }
+    }
+
+    private final DatabaseTokenStore tokenStore;
+    private final int batchSize;
+    private final Duration interval;
+    private final Duration minPause;
+    private final LongAdder totalDeleted = new LongAdder();
+    private volatile ScheduledExecutorService executor;
+    private volatile Sweep lastSweep;
+
+    private long sweepStart;
+    private long sweepRows;
+    private int sweepBatches;
+
+    public ExpiredTokenReaper(DatabaseTokenStore tokenStore, int batchSize,
+            Duration interval, Duration minPause) {
+        this.tokenStore = tokenStore;
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.minPause = minPause;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            throw new IllegalStateException("already started");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "expired-token-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schedule(interval.toNanos());
+    }
+
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    public Sweep lastSweep() {
+        return lastSweep;
+    }
+
+    public long totalDeleted() {
+        return totalDeleted.sum();
+    }
+
+    private void schedule(long delayNanos) {
+        var executor = this.executor;
+        if (executor == null) return;
+        try {
+            executor.schedule(this::deleteBatch, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped while this batch was running
+        }
+    }
+
+    private void deleteBatch() {
+        var batchStart = System.nanoTime();
+        if (sweepBatches == 0) {
+            sweepStart = batchStart;
+        }
+        int deleted;
+        try {
+            deleted = tokenStore.deleteExpiredTokens(batchSize);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to delete expired tokens", e);
+            deleted = 0;
+        }
+        sweepRows += deleted;
+        sweepBatches++;
+        totalDeleted.add(deleted);
+
+        var now = System.nanoTime();
+        if (deleted >= batchSize) {
+            schedule(Math.max(minPause.toNanos(), now - batchStart));
+            return;
+        }
+
+        lastSweep = new Sweep(sweepRows, sweepBatches,
+                Duration.ofNanos(now - sweepStart));
+        if (sweepRows > 0) {
+            logger.info("Deleted {} expired tokens in {} batches ({} ms)",
+                    sweepRows, sweepBatches,
+                    TimeUnit.NANOSECONDS.toMillis(now - sweepStart));
+        }
+        sweepRows = 0;
+        sweepBatches = 0;
+        schedule(interval.toNanos());
+    }
+}
@@ -1,72 +1,123 @@
 
 package com.manning.apisecurityinaction.token;
- 
+
 import spark.Request;
- 
+
 import javax.crypto.Mac;
-import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.*;
- 
+
 public class HmacTokenStore implements TokenStore {
- 
-    private final TokenStore delegate;                         
-    private final Key macKey;                                  
- 
-    public HmacTokenStore(TokenStore delegate, Key macKey) {   
+
+    private final TokenStore delegate;
+    private final Key macKey;
+    private final ThreadLocal<Verifier> verifiers;
+
+    public HmacTokenStore(TokenStore delegate, Key macKey) {
         this.delegate = delegate;
         this.macKey = macKey;
+        this.verifiers = ThreadLocal.withInitial(Verifier::new);
     }
 
     @Override
     public String create(Request request, Token token) {
-        var tokenId = delegate.create(request, token);         
-        var tag = hmac(tokenId);                               
- 
-        return tokenId + '.' + Base64url.encode(tag);          
-    }
- 
-    private byte[] hmac(String tokenId) {
-        try {
-            var mac = Mac.getInstance(macKey.getAlgorithm());  
-            mac.init(macKey);                                  
-            return mac.doFinal(                                
-                    tokenId.getBytes(StandardCharsets.UTF_8)); 
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
+        var tokenId = delegate.create(request, token);
+        var verifier = verifiers.get();
+        var macLength = verifier.hmac(tokenId, 0, tokenId.length());
+        var tag = Arrays.copyOf(verifier.computed, macLength);
+
+        return tokenId + '.' + Base64url.encode(tag);
     }
- 
+
     @Override
     public Optional<Token> read(Request request, String tokenId) {
-        var index = tokenId.lastIndexOf('.');                             
-        if (index == -1) {                                                
-            return Optional.empty();                                      
-        }                                                                 
-        var realTokenId = tokenId.substring(0, index);                    
-        var provided = Base64url.decode(tokenId.substring(index + 1));    
-        var computed = hmac(realTokenId);                                 
-    
-        if (!MessageDigest.isEqual(provided, computed)) {                 
+        return read(request, tokenId, 0, tokenId.length());
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String text, int offset,
+            int length) {
+        var index = verifiers.get().verify(text, offset, offset + length);
+        if (index == -1) {
             return Optional.empty();
         }
-    
-        return delegate.read(request, realTokenId);
+
+        return delegate.read(request, text, offset, index - offset);
     }
 
     @Override
     public void revoke(Request request, String tokenId) {
-        var index = tokenId.lastIndexOf('.');
+        revoke(request, tokenId, 0, tokenId.length());
+    }
+
+    @Override
+    public void revoke(Request request, String text, int offset, int length) {
+        var index = verifiers.get().verify(text, offset, offset + length);
         if (index == -1) return;
-        var realTokenId = tokenId.substring(0, index);
 
-        var provided = Base64url.decode(tokenId.substring(index + 1));
-        var computed = hmac(realTokenId);
+        delegate.revoke(request, text, offset, index - offset);
+    }
 
-        if (!MessageDigest.isEqual(provided, computed)) {
-            return;
+    private class Verifier {
+        private final Mac mac;
+        private final byte[] computed;
+        private final byte[] provided;
+        private byte[] input = new byte[64];
+
+        Verifier() {
+            try {
+                mac = Mac.getInstance(macKey.getAlgorithm());
+                mac.init(macKey);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            computed = new byte[mac.getMacLength()];
+            provided = new byte[mac.getMacLength()];
+        }
+
+        int hmac(String text, int offset, int length) {
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+            // Token ids are base64url so the ASCII bytes are the chars
+            for (int i = 0; i < length; ++i) {
+                var c = text.charAt(offset + i);
+                if (c >= 128) {
+                    return -1;
+                }
+                input[i] = (byte) c;
+            }
+            try {
+                mac.reset();
+                mac.update(input, 0, length);
+                mac.doFinal(computed, 0);
+                return computed.length;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
         }
 
-        delegate.revoke(request, realTokenId);
+        /**
+         * Checks the token in {@code text} from {@code start} to
+         * {@code end}. Returns the index of the '.' separating the token
+         * id from its tag, or -1 if the tag is missing or does not match.
+         */
+        int verify(String text, int start, int end) {
+            var index = text.lastIndexOf('.', end - 1);
+            if (index < start) {
+                return -1;
+            }
+            var length = Base64url.decode(text, index + 1, end, provided);
+            var macLength = hmac(text, start, index - start);
+            if (macLength == -1) {
+                return -1;
+            }
+
+            var diff = length ^ macLength;
+            for (int i = 0; i < macLength; ++i) {
+                diff |= provided[i] ^ computed[i];
+            }
+            return diff == 0 ? index : -1;
+        }
     }
-} 
\ No newline at end of file
+}
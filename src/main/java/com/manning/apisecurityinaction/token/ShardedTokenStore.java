@@ -0,0 +1,106 @@
+package com.manning.apisecurityinaction.token;
+
+import spark.Request;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Spreads tokens over several {@link DatabaseTokenStore}s, each backed by
+ * its own database and pool. Tokens are placed on a consistent-hashing
+ * ring by the SHA-256 hash of their id, with many virtual nodes per
+ * shard, so adding a shard moves only about 1/N of the tokens.
+ *
+ * <p>While shards are being added, pass the previous shard list too:
+ * a token not found on its new shard is then looked up on the shard that
+ * owned it before, so existing sessions survive until they expire.
+ */
+public class ShardedTokenStore implements TokenStore {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final Map<String, DatabaseTokenStore> shards;
+    private final NavigableMap<Long, String> ring;
+    private final NavigableMap<Long, String> previousRing;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public ShardedTokenStore(Map<String, DatabaseTokenStore> shards) {
+        this(shards, null);
+    }
+
+    public ShardedTokenStore(Map<String, DatabaseTokenStore> shards,
+            Collection<String> previousShards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no token shards");
+        }
+        this.shards = Map.copyOf(shards);
+        this.ring = ring(shards.keySet());
+        if (previousShards != null && !previousShards.isEmpty()) {
+            if (!shards.keySet().containsAll(previousShards)) {
+                throw new IllegalArgumentException("previous shards must still exist");
+            }
+            this.previousRing = ring(previousShards);
+        } else {
+            this.previousRing = null;
+        }
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        var bytes = new byte[20];
+        secureRandom.nextBytes(bytes);
+        var tokenId = Base64url.encode(bytes);
+        shardFor(ring, tokenId).store(tokenId, token);
+        return tokenId;
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        var owner = shardFor(ring, tokenId);
+        var token = owner.read(request, tokenId);
+        if (token.isEmpty() && previousRing != null) {
+            var previous = shardFor(previousRing, tokenId);
+            if (previous != owner) {
+                return previous.read(request, tokenId);
+            }
+        }
+        return token;
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        var owner = shardFor(ring, tokenId);
+        owner.revoke(request, tokenId);
+        if (previousRing != null) {
+            var previous = shardFor(previousRing, tokenId);
+            if (previous != owner) {
+                previous.revoke(request, tokenId);
+            }
+        }
+    }
+
+    public Map<String, DatabaseTokenStore> shards() {
+        return shards;
+    }
+
+    private DatabaseTokenStore shardFor(NavigableMap<Long, String> ring,
+            String tokenId) {
+        var point = position(tokenId);
+        var entry = ring.ceilingEntry(point);
+        return shards.get(entry != null ? entry.getValue() : ring.firstEntry().getValue());
+    }
+
+    private static NavigableMap<Long, String> ring(Collection<String> shardNames) {
+        var ring = new TreeMap<Long, String>();
+        for (var name : shardNames) {
+            for (int i = 0; i < VIRTUAL_NODES; ++i) {
+                ring.put(position(name + "#" + i), name);
+            }
+        }
+        return ring;
+    }
+
+    private static long position(String key) {
+        return ByteBuffer.wrap(CookieTokenStore.sha256(key)).getLong();
+    }
+}
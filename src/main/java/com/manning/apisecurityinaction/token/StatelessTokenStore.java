@@ -0,0 +1,128 @@
+package com.manning.apisecurityinaction.token;
+
+import spark.Request;
+
+import javax.crypto.Mac;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StatelessTokenStore implements TokenStore {
+    private static final int VERSION = 1;
+    private static final int ID_LENGTH = 16;
+
+    private final Key macKey;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final Map<String, Instant> denylist = new ConcurrentHashMap<>();
+
+    public StatelessTokenStore(Key macKey) {
+        this.macKey = macKey;
+    }
+
+    @Override
+    public String create(Request request, Token token) {
+        var id = new byte[ID_LENGTH];
+        secureRandom.nextBytes(id);
+
+        var bytes = new ByteArrayOutputStream(64);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.write(id);
+            out.writeLong(token.expiry.getEpochSecond());
+            out.writeUTF(token.username);
+            out.writeShort(token.attributes.size());
+            for (var attr : token.attributes.entrySet()) {
+                out.writeUTF(attr.getKey());
+                out.writeUTF(attr.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        var payload = Base64url.encode(bytes.toByteArray());
+        return payload + '.' + Base64url.encode(hmac(payload));
+    }
+
+    @Override
+    public Optional<Token> read(Request request, String tokenId) {
+        var payload = verify(tokenId);
+        if (payload == null) {
+            return Optional.empty();
+        }
+
+        try (var in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readUnsignedByte() != VERSION) {
+                return Optional.empty();
+            }
+            var id = new byte[ID_LENGTH];
+            in.readFully(id);
+            if (denylist.containsKey(Base64url.encode(id))) {
+                return Optional.empty();
+            }
+            var expiry = Instant.ofEpochSecond(in.readLong());
+            var token = new Token(expiry, in.readUTF());
+            var attrs = in.readUnsignedShort();
+            for (int i = 0; i < attrs; ++i) {
+                token.attributes.put(in.readUTF(), in.readUTF());
+            }
+            return Optional.of(token);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void revoke(Request request, String tokenId) {
+        var payload = verify(tokenId);
+        if (payload == null || payload.length < 1 + ID_LENGTH + Long.BYTES) {
+            return;
+        }
+
+        var buf = ByteBuffer.wrap(payload);
+        buf.get();
+        var id = new byte[ID_LENGTH];
+        buf.get(id);
+        var expiry = Instant.ofEpochSecond(buf.getLong());
+
+        var now = Instant.now();
+        denylist.values().removeIf(now::isAfter);
+        if (now.isBefore(expiry)) {
+            denylist.put(Base64url.encode(id), expiry);
+        }
+    }
+
+    public int denylistSize() {
+        return denylist.size();
+    }
+
+    private byte[] verify(String tokenId) {
+        var index = tokenId.lastIndexOf('.');
+        if (index == -1) {
+            return null;
+        }
+        var payload = tokenId.substring(0, index);
+        try {
+            var provided = Base64url.decode(tokenId.substring(index + 1));
+            if (!MessageDigest.isEqual(provided, hmac(payload))) {
+                return null;
+            }
+            return Base64url.decode(payload);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] hmac(String payload) {
+        try {
+            var mac = Mac.getInstance(macKey.getAlgorithm());
+            mac.init(macKey);
+            return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
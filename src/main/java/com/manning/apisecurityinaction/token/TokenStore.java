@@ -7,6 +7,19 @@ public interface TokenStore {
   String create(Request request, Token token);             
   Optional<Token> read(Request request, String tokenId);   
   void revoke(Request request, String tokenId);
+
+  /**
+   * Reads the token whose id is the given range of {@code text}, such as
+   * an Authorization header, so callers need not cut it out first.
+   */
+  default Optional<Token> read(Request request, String text, int offset,
+      int length) {
+    return read(request, text.substring(offset, offset + length));
+  }
+
+  default void revoke(Request request, String text, int offset, int length) {
+    revoke(request, text.substring(offset, offset + length));
+  }
   class Token {
     public final Instant expiry;                           
     public final String username;                          
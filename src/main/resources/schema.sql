@@ -1,4 +1,5 @@
 CREATE TABLE audit_log(
+    row_id BIGINT AUTO_INCREMENT PRIMARY KEY,
     audit_id INT NULL,
     method VARCHAR(10) NOT NULL,
     path VARCHAR(100) NOT NULL,
@@ -7,6 +8,8 @@ CREATE TABLE audit_log(
     audit_time TIMESTAMP NOT NULL
 );
 CREATE SEQUENCE audit_id_seq;
+CREATE INDEX audit_id_idx ON audit_log(audit_id);
+CREATE INDEX audit_time_idx ON audit_log(audit_time, audit_id);
 
 CREATE TABLE users(
     user_id VARCHAR(30) PRIMARY KEY,
@@ -28,11 +31,13 @@ CREATE TABLE messages(
 );
 CREATE SEQUENCE msg_id_seq;
 CREATE INDEX msg_timestamp_idx ON messages(msg_time);      
+CREATE INDEX msg_space_time_idx ON messages(space_id, msg_time, msg_id);
+CREATE INDEX msg_space_id_idx ON messages(space_id, msg_id);
 CREATE UNIQUE INDEX space_name_idx ON spaces(name);
 
 CREATE USER natter_api_user PASSWORD 'password';              
 GRANT SELECT, INSERT ON spaces, messages TO natter_api_user;
-GRANT SELECT, INSERT ON users TO natter_api_user;
+GRANT SELECT, INSERT, UPDATE ON users TO natter_api_user;
 GRANT SELECT, INSERT ON audit_log TO natter_api_user;
 
 CREATE TABLE permissions(
@@ -0,0 +1,10 @@
+CREATE TABLE IF NOT EXISTS tokens(
+    token_id VARCHAR(100) PRIMARY KEY,
+    user_id VARCHAR(30) NOT NULL,
+    expiry TIMESTAMP NOT NULL,
+    attributes VARCHAR(4096) NOT NULL
+);
+CREATE INDEX IF NOT EXISTS expired_token_idx ON tokens(expiry);
+
+CREATE USER IF NOT EXISTS natter_api_user PASSWORD 'password';
+GRANT SELECT, INSERT, DELETE ON tokens TO natter_api_user;
@@ -0,0 +1,136 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditWriterTest {
+    private JdbcConnectionPool dataSource;
+    private Database database;
+    private ExecutorService refillExecutor;
+
+    @BeforeEach
+    void createDatabase() throws IOException {
+        dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() +
+                ";DB_CLOSE_DELAY=-1", "sa", "");
+        dataSource.setMaxConnections(32);
+        database = Database.forDataSource(dataSource);
+        try (var in = AuditWriterTest.class.getResourceAsStream("/schema.sql")) {
+            database.update(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "id-allocator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @AfterEach
+    void dropDatabase() {
+        refillExecutor.shutdownNow();
+        database.update("SHUTDOWN");
+        dataSource.dispose();
+    }
+
+    @Test
+    void eventsWrittenDuringShutdownAreNotLost() throws Exception {
+        for (var backpressure : List.of(AuditWriter.Backpressure.BLOCK,
+                AuditWriter.Backpressure.SYNCHRONOUS)) {
+            database.update("DELETE FROM audit_log");
+            var writer = newWriter(backpressure);
+            writer.start();
+            var accepted = new LongAdder();
+            var stop = new AtomicBoolean();
+            var producers = Executors.newFixedThreadPool(8);
+            try {
+                for (int i = 0; i < 8; ++i) {
+                    producers.execute(() -> {
+                        while (!stop.get()) {
+                            writer.write(writer.nextAuditId(), "GET", "/spaces", null, "user");
+                            accepted.increment();
+                        }
+                    });
+                }
+                Thread.sleep(200);
+                writer.shutdown();
+                // Keep writing past the shutdown, straight to the table
+                Thread.sleep(50);
+            } finally {
+                stop.set(true);
+                producers.shutdown();
+                assertTrue(producers.awaitTermination(10, TimeUnit.SECONDS));
+            }
+
+            assertEquals(accepted.sum(), countRows(), backpressure.name());
+            assertEquals(0, writer.droppedCount());
+        }
+    }
+
+    @Test
+    void failedBatchesAreRetried() throws Exception {
+        var writer = newWriter(AuditWriter.Backpressure.BLOCK);
+        writer.start();
+        try {
+            database.update("ALTER TABLE audit_log RENAME TO audit_log_offline");
+            for (int i = 0; i < 50; ++i) {
+                writer.write(writer.nextAuditId(), "POST", "/spaces", 201, "user");
+            }
+            // Long enough for several failed attempts
+            Thread.sleep(200);
+            database.update("ALTER TABLE audit_log_offline RENAME TO audit_log");
+
+            var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (countRows() < 50 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(50, countRows());
+        } finally {
+            writer.shutdown();
+        }
+        assertEquals(0, writer.droppedCount());
+    }
+
+    @Test
+    void longValuesAreCutToTheColumnSizes() {
+        var writer = newWriter(AuditWriter.Backpressure.SYNCHRONOUS);
+        writer.start();
+        writer.write(writer.nextAuditId(), "PROPPATCHX1", "/x".repeat(100), 200,
+                "u".repeat(40));
+        writer.shutdown();
+
+        assertEquals(1, countRows());
+        assertEquals(0, writer.droppedCount());
+    }
+
+    @Test
+    void watermarkIsAboveEveryCommittedRow() {
+        var writer = newWriter(AuditWriter.Backpressure.SYNCHRONOUS);
+        assertEquals(1, writer.committedBelow());
+        writer.start();
+        for (int i = 0; i < 10; ++i) {
+            writer.write(writer.nextAuditId(), "GET", "/", 200, null);
+        }
+        writer.shutdown();
+
+        assertEquals(11, writer.committedBelow());
+    }
+
+    private AuditWriter newWriter(AuditWriter.Backpressure backpressure) {
+        IdAllocator.prepareSequence(database, "audit_id_seq", "audit_log", "audit_id", 100);
+        return new AuditWriter(database,
+                new IdAllocator(database, "audit_id_seq", 100, refillExecutor),
+                100, 20, 5, backpressure);
+    }
+
+    private long countRows() {
+        return database.findUniqueLong("SELECT COUNT(*) FROM audit_log");
+    }
+}
@@ -0,0 +1,113 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdAllocatorTest {
+    private JdbcConnectionPool dataSource;
+    private Database database;
+    private ExecutorService refillExecutor;
+
+    @BeforeEach
+    void createDatabase() {
+        dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() +
+                ";DB_CLOSE_DELAY=-1", "sa", "");
+        database = Database.forDataSource(dataSource);
+        database.update("CREATE TABLE spaces(space_id INT PRIMARY KEY)");
+        database.update("CREATE SEQUENCE space_id_seq");
+        refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "id-allocator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @AfterEach
+    void dropDatabase() {
+        refillExecutor.shutdownNow();
+        database.update("SHUTDOWN");
+        dataSource.dispose();
+    }
+
+    @Test
+    void allocatesConsecutiveIdsAcrossBlocks() {
+        IdAllocator.prepareSequence(database, "space_id_seq", "spaces", "space_id", 10);
+        var allocator = new IdAllocator(database, "space_id_seq", 10, refillExecutor);
+
+        for (long expected = 1; expected <= 35; ++expected) {
+            assertEquals(expected, allocator.next());
+        }
+    }
+
+    @Test
+    void neverAllocatesAnIdTwiceUnderContention() throws Exception {
+        IdAllocator.prepareSequence(database, "space_id_seq", "spaces", "space_id", 16);
+        var allocator = new IdAllocator(database, "space_id_seq", 16, refillExecutor);
+        var threads = 8;
+        var perThread = 5_000;
+        var pool = Executors.newFixedThreadPool(threads);
+        try {
+            var start = new CountDownLatch(1);
+            var futures = new ArrayList<Future<long[]>>();
+            for (int t = 0; t < threads; ++t) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    var ids = new long[perThread];
+                    for (int i = 0; i < perThread; ++i) {
+                        ids[i] = allocator.next();
+                    }
+                    return ids;
+                }));
+            }
+            start.countDown();
+
+            var seen = new HashSet<Long>();
+            for (var future : futures) {
+                for (var id : future.get(30, TimeUnit.SECONDS)) {
+                    assertTrue(seen.add(id), "id allocated twice: " + id);
+                }
+            }
+            assertEquals(threads * perThread, seen.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void smallerBlockSizeOnRestartDoesNotReuseIds() {
+        IdAllocator.prepareSequence(database, "space_id_seq", "spaces", "space_id", 100);
+        var first = new IdAllocator(database, "space_id_seq", 100, refillExecutor);
+        var highest = 0L;
+        for (int i = 0; i < 5; ++i) {
+            highest = Math.max(highest, first.next());
+        }
+
+        // A restart with a smaller block discards the rest of the old block
+        IdAllocator.prepareSequence(database, "space_id_seq", "spaces", "space_id", 10);
+        var second = new IdAllocator(database, "space_id_seq", 10, refillExecutor);
+        assertTrue(second.next() > highest);
+    }
+
+    @Test
+    void preparedSequenceStartsAfterExistingRows() {
+        database.update("INSERT INTO spaces VALUES(41)");
+        IdAllocator.prepareSequence(database, "space_id_seq", "spaces", "space_id", 10);
+        var allocator = new IdAllocator(database, "space_id_seq", 10, refillExecutor);
+
+        assertEquals(42, allocator.next());
+    }
+
+    @Test
+    void rejectsInvalidNames() {
+        assertThrows(IllegalArgumentException.class, () -> IdAllocator.prepareSequence(
+                database, "space_id_seq; DROP TABLE spaces", "spaces", "space_id", 10));
+        assertThrows(IllegalArgumentException.class,
+                () -> new IdAllocator(database, "Space-Seq", 10, refillExecutor));
+    }
+}
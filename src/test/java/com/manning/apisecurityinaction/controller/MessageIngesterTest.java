@@ -0,0 +1,161 @@
+package com.manning.apisecurityinaction.controller;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageIngesterTest {
+    private static final int SPACES = 4;
+    private static final int POSTERS = 16;
+    private static final int MESSAGES = 4_000;
+
+    private JdbcConnectionPool dataSource;
+    private Database database;
+    private ExecutorService refillExecutor;
+    private MessageIngester ingester;
+
+    @BeforeEach
+    void createDatabase() throws IOException {
+        dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() +
+                ";DB_CLOSE_DELAY=-1", "sa", "");
+        dataSource.setMaxConnections(32);
+        database = Database.forDataSource(dataSource);
+        try (var in = MessageIngesterTest.class.getResourceAsStream("/schema.sql")) {
+            database.update(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        for (int space = 1; space <= SPACES; ++space) {
+            database.update("INSERT INTO spaces VALUES(?, ?, 'owner')",
+                    space, "space" + space);
+        }
+        IdAllocator.prepareSequence(database, "msg_id_seq", "messages", "msg_id", 8);
+        refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "id-allocator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Small batches and several writers, so batches commit out of order
+        ingester = new MessageIngester(database,
+                new IdAllocator(database, "msg_id_seq", 8, refillExecutor),
+                4, 5, 1, 10_000);
+    }
+
+    @AfterEach
+    void dropDatabase() {
+        ingester.shutdown();
+        refillExecutor.shutdownNow();
+        database.update("SHUTDOWN");
+        dataSource.dispose();
+    }
+
+    @Test
+    void pagingUpToTheWatermarkNeverSkipsALateCommit() throws Exception {
+        var posters = Executors.newFixedThreadPool(POSTERS);
+        var done = new AtomicBoolean();
+        try {
+            var posts = new ArrayList<Future<Long>>();
+            for (int i = 0; i < MESSAGES; ++i) {
+                var space = 1 + i % SPACES;
+                posts.add(posters.submit(() ->
+                        ingester.post(space, Instant.now(), "author", "text")));
+            }
+
+            // Page through space 1 while the posts are still being written
+            var paged = new ArrayList<Long>();
+            var after = 0L;
+            var finished = CompletableFuture.runAsync(() -> {
+                for (var post : posts) {
+                    try {
+                        post.get();
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+                done.set(true);
+            });
+            while (true) {
+                var last = done.get();
+                var page = page(1, after, ingester.committedBelow(), 10);
+                paged.addAll(page);
+                if (!page.isEmpty()) {
+                    after = page.get(page.size() - 1);
+                } else if (last) {
+                    break;
+                }
+            }
+            finished.get(60, TimeUnit.SECONDS);
+
+            var stored = page(1, 0, Long.MAX_VALUE, Integer.MAX_VALUE);
+            assertEquals(MESSAGES / SPACES, stored.size());
+            assertEquals(stored, paged);
+        } finally {
+            posters.shutdownNow();
+        }
+    }
+
+    @Test
+    void noMessageCommitsBelowAnEarlierWatermark() throws Exception {
+        var posters = Executors.newFixedThreadPool(POSTERS);
+        try {
+            var posts = new ArrayList<Future<Long>>();
+            for (int i = 0; i < MESSAGES; ++i) {
+                var space = 1 + i % SPACES;
+                posts.add(posters.submit(() ->
+                        ingester.post(space, Instant.now(), "author", "text")));
+            }
+
+            var samples = new ArrayList<long[]>();
+            while (!posts.stream().allMatch(Future::isDone)) {
+                var watermark = ingester.committedBelow();
+                samples.add(new long[] { watermark, countBelow(watermark) });
+            }
+            var ids = new HashSet<Long>();
+            for (var post : posts) {
+                ids.add(post.get());
+            }
+
+            assertEquals(MESSAGES, ids.size());
+            for (var sample : samples) {
+                assertEquals(sample[1], countBelow(sample[0]),
+                        "a message committed below watermark " + sample[0]);
+            }
+            assertEquals(Collections.max(ids) + 1, ingester.committedBelow());
+        } finally {
+            posters.shutdownNow();
+        }
+    }
+
+    private List<Long> page(long spaceId, long afterId, long committedBelow, int limit)
+            throws SQLException {
+        try (var conn = dataSource.getConnection();
+             var stmt = conn.prepareStatement("SELECT msg_id FROM messages " +
+                     "WHERE space_id = ? AND msg_id > ? AND msg_id < ? " +
+                     "ORDER BY msg_id LIMIT ?")) {
+            stmt.setLong(1, spaceId);
+            stmt.setLong(2, afterId);
+            stmt.setLong(3, committedBelow);
+            stmt.setInt(4, limit);
+            var ids = new ArrayList<Long>();
+            try (var rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+            return ids;
+        }
+    }
+
+    private long countBelow(long watermark) {
+        return database.findUniqueLong(
+                "SELECT COUNT(*) FROM messages WHERE msg_id < ?", watermark);
+    }
+}
@@ -0,0 +1,74 @@
+package com.manning.apisecurityinaction.controller;
+
+import com.lambdaworks.crypto.SCryptUtil;
+import org.junit.jupiter.api.*;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordHasherTest {
+    private static final int R = 8, P = 1;
+    private static final int MIN_N = 1 << 8, MAX_N = 1 << 11;
+
+    @Test
+    void calibrateStopsAtMaxN() {
+        var n = PasswordHasher.calibrate(R, P, Duration.ofSeconds(30), MIN_N, MAX_N,
+                Long.MAX_VALUE);
+
+        assertEquals(MAX_N, n);
+    }
+
+    @Test
+    void calibrateStaysWithinTheMemoryLimit() {
+        var limit = PasswordHasher.memoryCost(1 << 9, R, P) + 1;
+
+        var n = PasswordHasher.calibrate(R, P, Duration.ofSeconds(30), MIN_N, MAX_N, limit);
+
+        assertEquals(1 << 9, n);
+        assertTrue(PasswordHasher.memoryCost(n, R, P) <= limit);
+    }
+
+    @Test
+    void calibrateNeverGoesBelowMinN() {
+        var n = PasswordHasher.calibrate(R, P, Duration.ZERO, MIN_N, MAX_N, Long.MAX_VALUE);
+
+        assertEquals(MIN_N, n);
+    }
+
+    @Test
+    void calibrateRejectsMinNOverTheMemoryLimit() {
+        var limit = PasswordHasher.memoryCost(MIN_N, R, P) - 1;
+
+        assertThrows(IllegalArgumentException.class, () ->
+                PasswordHasher.calibrate(R, P, Duration.ofSeconds(1), MIN_N, MAX_N, limit));
+    }
+
+    @Test
+    void startsWithFewerThreadsWhenTheBudgetFitsOneHash() {
+        var hasher = new PasswordHasher(64, 8,
+                PasswordHasher.memoryCost(MIN_N, R, P), MIN_N, R, P);
+        try {
+            var hash = hasher.hash("password");
+
+            assertTrue(hasher.check("password", hash));
+            assertFalse(hasher.needsRehash(hash));
+        } finally {
+            hasher.shutdown();
+        }
+    }
+
+    @Test
+    void verifiesAndRehashesStoredHashesOverTheBudget() {
+        var stored = SCryptUtil.scrypt("password", MAX_N, R, P);
+        var hasher = new PasswordHasher(2, 8,
+                PasswordHasher.memoryCost(MIN_N, R, P), MIN_N, R, P);
+        try {
+            assertTrue(hasher.check("password", stored));
+            assertFalse(hasher.check("wrong", stored));
+            assertTrue(hasher.needsRehash(stored));
+        } finally {
+            hasher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.manning.apisecurityinaction.json;
+
+import org.json.*;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonFieldsTest {
+    private static final String AWKWARD = "quote \" backslash \\ slash / " +
+            "tab \t newline \n nul \u0000 del \u007f separators \u2028\u2029 " +
+            "accents \u00e9\u00fc cjk \u6f22\u5b57 emoji \ud83d\ude00 </script>";
+
+    @Test
+    void outputRoundTripsThroughReadStrings() {
+        var values = new LinkedHashMap<String, String>();
+        values.put("scope", "create_space post_message");
+        values.put("awkward", AWKWARD);
+        values.put("", "");
+
+        var decoded = new HashMap<String, String>();
+        JsonFields.readStrings(JsonOutput.toString(values), decoded);
+
+        assertEquals(values, decoded);
+    }
+
+    @Test
+    void outputIsReadableByOrgJson() {
+        var values = Map.of("author", "user42", "message", AWKWARD);
+
+        var json = new JSONObject(JsonOutput.toString(values));
+
+        assertEquals(values.keySet(), json.keySet());
+        assertEquals("user42", json.getString("author"));
+        assertEquals(AWKWARD, json.getString("message"));
+    }
+
+    @Test
+    void readsWhatOrgJsonWrites() throws IOException {
+        var body = new JSONObject()
+                .put("author", "user42")
+                .put("message", AWKWARD)
+                .put("ignored", new JSONObject().put("nested", new JSONArray()
+                        .put(1).put(true).put(JSONObject.NULL).put(-2.5e3)))
+                .toString();
+
+        var fromString = JsonFields.read(body, "author", "message");
+        var fromStream = JsonFields.read(new ByteArrayInputStream(
+                body.getBytes(StandardCharsets.UTF_8)), "author", "message");
+
+        for (var json : List.of(fromString, fromStream)) {
+            assertEquals("user42", json.getString("author"));
+            assertEquals(AWKWARD, json.getString("message"));
+        }
+    }
+
+    @Test
+    void decodesEscapesAndSurrogatePairs() {
+        var json = JsonFields.read(
+                "{\"text\":\"\\u00e9\\ud83d\\ude00\\\"\\\\\\/\\b\\f\\n\\r\\t\"}", "text");
+
+        assertEquals("\u00e9\ud83d\ude00\"\\/\b\f\n\r\t", json.getString("text"));
+    }
+
+    @Test
+    void reportsMissingAndNonStringFieldsLikeOrgJson() {
+        var json = JsonFields.read("{\"count\":3}", "count", "name");
+
+        var notString = assertThrows(JSONException.class, () -> json.getString("count"));
+        assertEquals("JSONObject[\"count\"] is not a string.", notString.getMessage());
+        var missing = assertThrows(JSONException.class, () -> json.getString("name"));
+        assertEquals("JSONObject[\"name\"] not found.", missing.getMessage());
+        assertNull(json.optString("count"));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        for (var body : List.of("", "[]", "{\"a\":\"b\"", "{\"a\":\"b\"} {}",
+                "{\"a\":\"b\",}", "{a:\"b\"}", "{\"a\":\"\\x\"}",
+                "{\"a\":\"b\",\"a\":\"c\"}")) {
+            assertThrows(JSONException.class, () -> JsonFields.read(body, "a"),
+                    () -> "accepted " + body);
+        }
+    }
+
+    @Test
+    void rejectsInvalidUtf8() {
+        var body = new byte[] { '{', '"', 'a', '"', ':', '"', (byte) 0xc3, '"', '}' };
+
+        assertThrows(JSONException.class,
+                () -> JsonFields.read(new ByteArrayInputStream(body), "a"));
+    }
+
+    @Test
+    void rejectsDeepNesting() {
+        var body = "{\"a\":" + "[".repeat(1_000) + "]".repeat(1_000) + "}";
+
+        assertThrows(JSONException.class, () -> JsonFields.read(body, "b"));
+    }
+}
@@ -0,0 +1,168 @@
+package com.manning.apisecurityinaction.persistence;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseSnapshotsTest {
+    private Path directory;
+    private final List<JdbcConnectionPool> dataSources = new ArrayList<>();
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("snapshots").resolve("natter");
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        for (var dataSource : dataSources) {
+            dataSource.dispose();
+        }
+        try (var files = Files.walk(directory.getParent())) {
+            for (var file : files.sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void restoresTheFullSnapshotAndEachDeltaOnce() throws Exception {
+        var source = newDatabase();
+        execute(source, readSchema());
+        execute(source, "INSERT INTO spaces VALUES(1, 'space', 'owner')");
+        var messageWatermark = new long[] { 1 };
+        var snapshots = new DatabaseSnapshots(source, directory, 5);
+        snapshots.committedBelow("messages", () -> messageWatermark[0]);
+        snapshots.committedBelow("audit_log", () -> count(source,
+                "SELECT COALESCE(MAX(row_id), 0) + 1 FROM audit_log"));
+
+        insertMessages(source, 1, 10);
+        insertAudit(source);
+        // Messages 5 to 10 are still being written as far as the full
+        // snapshot knows, but it catches them anyway
+        messageWatermark[0] = 5;
+        snapshots.snapshot();
+
+        insertMessages(source, 11, 11);
+        insertAudit(source);
+        messageWatermark[0] = 12;
+        snapshots.snapshot();
+
+        insertMessages(source, 12, 12);
+        messageWatermark[0] = 13;
+        snapshots.snapshot();
+
+        var target = newDatabase();
+        assertTrue(new DatabaseSnapshots(target, directory, 5).restore());
+
+        assertEquals(12, count(target, "SELECT COUNT(*) FROM messages"));
+        assertEquals(12, count(target, "SELECT COUNT(DISTINCT msg_id) FROM messages"));
+        assertEquals(2, count(target, "SELECT COUNT(*) FROM audit_log"));
+        // New audit rows continue after the restored ones
+        insertAudit(target);
+        assertEquals(3, count(target, "SELECT MAX(row_id) FROM audit_log"));
+    }
+
+    @Test
+    void mutableTablesAreOnlySavedByFullSnapshots() throws Exception {
+        var source = newDatabase();
+        execute(source, readSchema());
+        var snapshots = new DatabaseSnapshots(source, directory, 5);
+        snapshots.committedBelow("messages", () -> 1);
+        snapshots.committedBelow("audit_log", () -> 1);
+
+        snapshots.snapshot();
+        execute(source, "INSERT INTO users VALUES('alice', 'hash')");
+        snapshots.snapshot();
+
+        var target = newDatabase();
+        new DatabaseSnapshots(target, directory, 5).restore();
+        assertEquals(0, count(target, "SELECT COUNT(*) FROM users"));
+
+        snapshots.stop();
+        var afterStop = newDatabase();
+        new DatabaseSnapshots(afterStop, directory, 5).restore();
+        assertEquals(1, count(afterStop, "SELECT COUNT(*) FROM users"));
+    }
+
+    @Test
+    void filesAreReadableByTheOwnerOnly() throws Exception {
+        Assumptions.assumeTrue(directory.getFileSystem()
+                .supportedFileAttributeViews().contains("posix"));
+        var source = newDatabase();
+        execute(source, readSchema());
+        var snapshots = new DatabaseSnapshots(source, directory, 5);
+        snapshots.committedBelow("messages", () -> 1);
+        snapshots.committedBelow("audit_log", () -> 1);
+
+        snapshots.snapshot();
+        snapshots.snapshot();
+
+        assertEquals("rwx------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(directory)));
+        try (var files = Files.list(directory)) {
+            var names = new ArrayList<String>();
+            for (var file : files.collect(Collectors.toList())) {
+                names.add(file.getFileName().toString());
+                assertEquals("rw-------", PosixFilePermissions.toString(
+                        Files.getPosixFilePermissions(file)), file.toString());
+            }
+            assertEquals(2, names.size());
+        }
+    }
+
+    private JdbcConnectionPool newDatabase() {
+        var dataSource = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID() +
+                ";DB_CLOSE_DELAY=-1", "sa", "");
+        dataSources.add(dataSource);
+        return dataSource;
+    }
+
+    private static String readSchema() throws IOException {
+        try (var in = DatabaseSnapshotsTest.class.getResourceAsStream("/schema.sql")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void insertMessages(JdbcConnectionPool dataSource, int from, int to)
+            throws SQLException {
+        for (int id = from; id <= to; ++id) {
+            execute(dataSource, "INSERT INTO messages(space_id, msg_id, author, msg_text) " +
+                    "VALUES(1, " + id + ", 'author', 'text')");
+        }
+    }
+
+    private static void insertAudit(JdbcConnectionPool dataSource) throws SQLException {
+        execute(dataSource, "INSERT INTO audit_log(audit_id, method, path, audit_time) " +
+                "VALUES(1, 'GET', '/spaces', CURRENT_TIMESTAMP)");
+    }
+
+    private static void execute(JdbcConnectionPool dataSource, String sql)
+            throws SQLException {
+        try (var conn = dataSource.getConnection();
+             var stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static long count(JdbcConnectionPool dataSource, String sql) {
+        try (var conn = dataSource.getConnection();
+             var stmt = conn.createStatement();
+             var rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
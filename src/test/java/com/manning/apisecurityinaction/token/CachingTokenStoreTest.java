@@ -0,0 +1,106 @@
+package com.manning.apisecurityinaction.token;
+
+import org.junit.jupiter.api.*;
+import spark.Request;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingTokenStoreTest {
+
+    /**
+     * Keeps tokens in a map. A read can be paused after it has loaded the
+     * token, to let a revoke run before the caching store caches it.
+     */
+    private static class MapTokenStore implements TokenStore {
+        final Map<String, Token> tokens = new ConcurrentHashMap<>();
+        volatile CountDownLatch loaded;
+        volatile CountDownLatch resume;
+
+        @Override
+        public String create(Request request, Token token) {
+            var tokenId = UUID.randomUUID().toString();
+            tokens.put(tokenId, token);
+            return tokenId;
+        }
+
+        @Override
+        public Optional<Token> read(Request request, String tokenId) {
+            var token = Optional.ofNullable(tokens.get(tokenId));
+            var loaded = this.loaded;
+            if (loaded != null) {
+                this.loaded = null;
+                loaded.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return token;
+        }
+
+        @Override
+        public void revoke(Request request, String tokenId) {
+            tokens.remove(tokenId);
+        }
+    }
+
+    private final MapTokenStore delegate = new MapTokenStore();
+    private final CachingTokenStore store =
+            new CachingTokenStore(delegate, 4, Duration.ofMinutes(10));
+
+    @Test
+    void revokedTokensAreNotServedFromTheCache() {
+        var tokenId = store.create(null, token());
+        assertTrue(store.read(null, tokenId).isPresent());
+
+        store.revoke(null, tokenId);
+
+        assertTrue(store.read(null, tokenId).isEmpty());
+    }
+
+    @Test
+    void aReadRacingARevokeCannotRevive() throws Exception {
+        var tokenId = delegate.create(null, token());
+        var loaded = new CountDownLatch(1);
+        delegate.resume = new CountDownLatch(1);
+        delegate.loaded = loaded;
+        var racingRead = CompletableFuture.supplyAsync(() -> store.read(null, tokenId));
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+
+        store.revoke(null, tokenId);
+        delegate.resume.countDown();
+        // Loaded before the revoke, so it may still see the token
+        racingRead.get(10, TimeUnit.SECONDS);
+
+        assertTrue(store.read(null, tokenId).isEmpty());
+    }
+
+    @Test
+    void manyRevocationsDoNotEvictEarlierOnes() throws Exception {
+        var tokenId = delegate.create(null, token());
+        var loaded = new CountDownLatch(1);
+        delegate.resume = new CountDownLatch(1);
+        delegate.loaded = loaded;
+        var racingRead = CompletableFuture.supplyAsync(() -> store.read(null, tokenId));
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        store.revoke(null, tokenId);
+        delegate.resume.countDown();
+        racingRead.get(10, TimeUnit.SECONDS);
+
+        // Far more than the cache's maximum size
+        for (int i = 0; i < 100; ++i) {
+            store.revoke(null, store.create(null, token()));
+        }
+
+        assertTrue(store.read(null, tokenId).isEmpty());
+    }
+
+    private static TokenStore.Token token() {
+        return new TokenStore.Token(Instant.now().plus(Duration.ofHours(1)), "alice");
+    }
+}